@@ -0,0 +1,87 @@
+package org.duelengine.merge;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes to a temporary sibling which only replaces the target once committed,
+ * so readers see either the previous or the complete new contents
+ */
+class AtomicFileWriter extends OutputStreamWriter {
+
+	private static final String TEMP_EXT = ".tmp";
+	private static final String CHAR_ENCODING = "UTF-8";
+
+	private final FileOutputStream stream;
+	private final File temp;
+	private final File target;
+	private boolean closed;
+
+	public AtomicFileWriter(File target)
+			throws IOException {
+
+		this(target, File.createTempFile(target.getName(), TEMP_EXT, target.getAbsoluteFile().getParentFile()));
+	}
+
+	private AtomicFileWriter(File target, File temp)
+			throws IOException {
+
+		this(target, temp, new FileOutputStream(temp));
+	}
+
+	private AtomicFileWriter(File target, File temp, FileOutputStream stream)
+			throws IOException {
+
+		// manifests are always read back as UTF-8
+		super(stream, CHAR_ENCODING);
+
+		this.target = target;
+		this.temp = temp;
+		this.stream = stream;
+	}
+
+	/**
+	 * Flushes the contents to disk and atomically replaces the target
+	 * @throws IOException
+	 */
+	public void commit()
+			throws IOException {
+
+		flush();
+		stream.getFD().sync();
+		super.close();
+		closed = true;
+
+		try {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Discards the contents unless already committed
+	 */
+	@Override
+	public void close()
+			throws IOException {
+
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		try {
+			super.close();
+
+		} finally {
+			temp.delete();
+		}
+	}
+}
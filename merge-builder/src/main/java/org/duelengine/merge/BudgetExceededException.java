@@ -0,0 +1,15 @@
+package org.duelengine.merge;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a build grows its output past the configured size budgets
+ */
+public class BudgetExceededException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public BudgetExceededException(String message) {
+		super(message);
+	}
+}
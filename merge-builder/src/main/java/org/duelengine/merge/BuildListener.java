@@ -0,0 +1,52 @@
+package org.duelengine.merge;
+
+import java.io.File;
+
+/**
+ * Receives progress events from a {@link BuildManager}.
+ * Events may arrive concurrently from compaction threads.
+ */
+public interface BuildListener {
+
+	/**
+	 * A source file was found while walking the source directory
+	 * @param path
+	 * @param source
+	 */
+	void onDiscovered(String path, File source);
+
+	/**
+	 * The hashed output path of a resource was calculated
+	 * @param path
+	 * @param hashPath
+	 * @param bytes size of the source
+	 * @param nanos time spent hashing
+	 */
+	void onHashed(String path, String hashPath, long bytes, long nanos);
+
+	/**
+	 * A resource was compacted into its output
+	 * @param path
+	 * @param hashPath
+	 * @param bytes size of the output
+	 * @param nanos time spent compacting
+	 */
+	void onCompacted(String path, String hashPath, long bytes, long nanos);
+
+	/**
+	 * A resource was restored from the compaction cache rather than compacted
+	 * @param path
+	 * @param hashPath
+	 * @param bytes size of the output
+	 * @param nanos time spent restoring
+	 */
+	void onCacheHit(String path, String hashPath, long bytes, long nanos);
+
+	/**
+	 * A resource could not be processed
+	 * @param path
+	 * @param message
+	 * @param cause null unless caused by an exception
+	 */
+	void onFailed(String path, String message, Throwable cause);
+}
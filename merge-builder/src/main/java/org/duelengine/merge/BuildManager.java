@@ -1,49 +1,105 @@
 package org.duelengine.merge;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Queue;
+import java.util.ServiceLoader;
 import java.util.Set;
 import java.util.Stack;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class BuildManager {
 
-	private static final String HASH_ALGORITHM = "SHA-1";
+	private static final int BUFFER_SIZE = 4096;
+	private static final String GZIP_EXT = ".gz";
 	private static final String NEWLINE = System.getProperty("line.separator");
 	private static final String PROPERTY_LIST_DELIM = "|";
+	private static final String SPILLED_LIST_DELIM = "\n";
+	private static final String VERSION_PREFIX = "#version=";
+	private static final String STAMP_PREFIX = "#";
+	private static final String CHAR_ENCODING = "UTF-8";
+
+	/**
+	 * Names the {@link Settings#getFingerprint()} stamp of a compaction map
+	 */
+	public static final String SETTINGS_STAMP = "settings";
+
+	/**
+	 * Names the stamp of when the build writing a compaction map started
+	 */
+	public static final String STARTED_STAMP = "started";
 	private static final Logger log = LoggerFactory.getLogger(BuildManager.class);
 
 	private final Map<String, String> hashLookup = new LinkedHashMap<String, String>();
 	private final Map<String, List<String>> dependencyMap = new LinkedHashMap<String, List<String>>();
 	private final Map<String, List<String>> childLinkMap = new LinkedHashMap<String, List<String>>();
+	private final Map<String, String> pathPool = new HashMap<String, String>();
+	private final Map<String, String> previousLookup = new HashMap<String, String>();
+	private final Map<String, Future<String>> pending = new HashMap<String, Future<String>>();
+	private final ConcurrentMap<String, OutputOwner> outputIndex = new ConcurrentHashMap<String, OutputOwner>();
+	private final Map<String, String> duplicates = Collections.synchronizedMap(new TreeMap<String, String>());
+	private final ConcurrentMap<String, String> integrity = new ConcurrentHashMap<String, String>();
 	private final Map<String, Compactor> compactors;
+	private final Map<String, CompactorProvider> providers = new HashMap<String, CompactorProvider>();
 	private final Settings settings;
+	private final CompactionCache cache;
+	private final CssImportCache importCache = new CssImportCache();
 	private final Stack<String> dependencyChain = new Stack<String>();
+	private ManifestSpool spool;
+	private ManifestSpool integritySpool;
+	private ManifestSpool dependencySpool;
+	private ManifestSpool linkSpool;
+	private OutputArchive archive;
+	private CommonChunkPlan commonChunks;
+	private BuildListener listener;
+	private String version = "";
+	private long started;
 
 	/**
+	 * Registers every {@link CompactorProvider} on the classpath, each compactor
+	 * being created when the first file with one of its extensions is found
 	 * @param settings path location settings
 	 */
 	public BuildManager(Settings settings) {
-		this(settings,
-			new MergeCompactor(
-				new JSPlaceholderGenerator(),
-				new CSSPlaceholderGenerator()),
-			new NullCompactor(settings.getExtensions()),
-			new CSSCompactor(),
-			new JSCompactor());
+		this(settings, new Compactor[0]);
+
+		for (CompactorProvider provider : ServiceLoader.load(CompactorProvider.class, BuildManager.class.getClassLoader())) {
+			for (String ext : provider.getSourceExtensions(settings)) {
+				this.providers.put(ext, provider);
+			}
+		}
 	}
 
 	/**
@@ -62,9 +118,14 @@ public class BuildManager {
 		}
 
 		this.settings = settings;
+		this.cache = (settings.getCacheDir() != null) ? new CompactionCache(settings.getCacheDir()) : null;
 
 		this.compactors = new LinkedHashMap<String, Compactor>(compactors.length);
 		for (Compactor compactor : compactors) {
+			if (!settings.isCompactorEnabled(getCompactorName(compactor))) {
+				// bypass by copying the files unmodified
+				compactor = new NullCompactor(compactor.getSourceExtensions());
+			}
 			for (String ext : compactor.getSourceExtensions()) {
 				this.compactors.put(ext, compactor);
 			}
@@ -79,33 +140,516 @@ public class BuildManager {
 	public void execute()
 			throws IOException, NoSuchAlgorithmException {
 
+		// sources modified once the build reads them must be rebuilt next time,
+		// rounded down as file systems may only keep whole seconds
+		started = System.currentTimeMillis() / 1000L * 1000L;
+
+		if (settings.getManifestLimit() > 0) {
+			executeStreaming();
+			return;
+		}
+
+		DiffReport diff = (settings.getBaselineMapFile() != null) ? new DiffReport(settings) : null;
 		Map<File, String> inputFiles = findFiles();
 
-		for (File source : inputFiles.keySet()) {
-			processResource(
-				inputFiles.get(source),
-				source);
+		openArchive();
+		try {
+			planCommonChunks();
+			processFiles(inputFiles);
+			reportDuplicates();
+			writeCompactionMap();
+			writeChildLinksMap();
+			commitArchive();
+
+		} finally {
+			closeArchive();
+			commonChunks = null;
+			importCache.clear();
+		}
+
+		if (cache != null) {
+			cache.evict(settings.getCacheLimit());
+		}
+		if (diff != null) {
+			diff.write();
+		}
+	}
+
+	/**
+	 * Processes each resource, compacting isolated resources in the background when threaded
+	 * @param inputFiles
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	private void processFiles(Map<File, String> inputFiles)
+			throws IOException, NoSuchAlgorithmException {
+
+		ExecutorService executor = null;
+		if (settings.getThreads() > 1) {
+			executor = Executors.newFixedThreadPool(settings.getThreads());
+		}
+
+		try {
+			if (executor != null) {
+				// isolated resources are compacted in the background
+				submitIsolated(executor, inputFiles);
+			}
+
+			for (File source : inputFiles.keySet()) {
+				processResource(
+					inputFiles.get(source),
+					source);
+			}
+
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+			pending.clear();
+			outputIndex.clear();
+		}
+	}
+
+	/**
+	 * Queues hashing and compaction of each resource which does not depend upon others.
+	 * Results are collected in order as each path is processed.
+	 * @param executor
+	 * @param inputFiles
+	 */
+	private void submitIsolated(ExecutorService executor, Map<File, String> inputFiles) {
+		for (Map.Entry<File, String> input : inputFiles.entrySet()) {
+			final File source = input.getKey();
+			final String path = input.getValue();
+			if (!source.exists() || isProcessed(path) || previousLookup.containsKey(path) || pending.containsKey(path)) {
+				continue;
+			}
+
+			if (!isIsolated(getExtension(path))) {
+				continue;
+			}
+
+			final Compactor compactor = getCompactor(getExtension(path));
+
+			pending.put(path, executor.submit(new Callable<String>() {
+				@Override
+				public String call()
+						throws IOException, NoSuchAlgorithmException {
+
+					Resource resource = new Resource(path, source);
+					String hashPath = calcHashPath(compactor, resource);
+					compactResource(compactor, resource, hashPath);
+					return hashPath;
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Waits for the result of a background compaction
+	 * @param task
+	 * @return the hashed output path
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	private static String awaitPending(Future<String> task)
+			throws IOException, NoSuchAlgorithmException {
+
+		try {
+			return task.get();
+
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(ex.getMessage());
+
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			}
+			if (cause instanceof NoSuchAlgorithmException) {
+				throw (NoSuchAlgorithmException)cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Rebuilds after the given source files have changed. Unchanged resources
+	 * from {@link IsolatedCompactor}s reuse their previous compaction map entry,
+	 * everything else (e.g., merge files and stylesheets) is reprocessed.
+	 * Everything is rebuilt if the previous build used different settings.
+	 * @param changes modified source files, or null to rebuild everything
+	 * @throws IOException 
+	 * @throws NoSuchAlgorithmException 
+	 */
+	public void execute(Collection<File> changes)
+			throws IOException, NoSuchAlgorithmException {
+
+		File cdnMapFile = settings.getCDNMapFile();
+		if (changes == null || settings.getManifestLimit() > 0 || !cdnMapFile.exists()) {
+			execute();
+			return;
+		}
+
+		Map<String, String> stamps = readManifestStamps(cdnMapFile);
+		long previousStart = parseStamp(stamps.get(STARTED_STAMP));
+		if (!settings.getFingerprint().equals(stamps.get(SETTINGS_STAMP)) || previousStart <= 0L) {
+			log.info("Settings changed since the previous build, rebuilding everything");
+			execute();
+			return;
+		}
+
+		Set<String> changedPaths = new HashSet<String>(changes.size());
+		for (File change : changes) {
+			changedPaths.add(change.getCanonicalPath());
+		}
+
+		Properties previous = new Properties();
+		Reader reader = new InputStreamReader(new FileInputStream(cdnMapFile), CHAR_ENCODING);
+		try {
+			previous.load(reader);
+
+		} finally {
+			reader.close();
+		}
+
+		String cdnRoot = settings.getCDNRoot();
+		for (String path : previous.stringPropertyNames()) {
+			if (path.startsWith(cdnRoot)) {
+				// debug placeholders are regenerated along with their merge files
+				continue;
+			}
+
+			if (!isIsolated(getExtension(path))) {
+				// output may depend upon other resources
+				continue;
+			}
+
+			File source = settings.findSourceFile(path);
+			if (!source.exists() || changedPaths.contains(source.getCanonicalPath())) {
+				continue;
+			}
+
+			if (source.lastModified() >= previousStart) {
+				// modified during or since the previous build, whatever the caller found
+				continue;
+			}
+
+			String hashPath = previous.getProperty(path);
+			if (settings.getTargetFile(hashPath).exists()) {
+				previousLookup.put(path, hashPath);
+			}
 		}
 
-		writeCompactionMap();
-		writeChildLinksMap();
+		log.info("Incremental build: "+changedPaths.size()+" changed, "+previousLookup.size()+" reused");
+		try {
+			execute();
+
+		} finally {
+			previousLookup.clear();
+		}
+	}
+
+	/**
+	 * Reads the stamps heading a compaction map, e.g., "#started=..." as "started"
+	 * @param mapFile
+	 * @return the stamp values keyed by name, empty if missing
+	 * @throws IOException
+	 */
+	public static Map<String, String> readManifestStamps(File mapFile)
+			throws IOException {
+
+		Map<String, String> stamps = new HashMap<String, String>();
+		if (mapFile == null || !mapFile.isFile()) {
+			return stamps;
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mapFile), CHAR_ENCODING));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null && line.startsWith(STAMP_PREFIX)) {
+				int eq = line.indexOf('=');
+				if (eq > 0) {
+					stamps.put(line.substring(STAMP_PREFIX.length(), eq), line.substring(eq+1));
+				}
+			}
+
+		} finally {
+			reader.close();
+		}
+		return stamps;
+	}
+
+	/**
+	 * @param stamp
+	 * @return the stamped time, or zero if missing
+	 */
+	public static long parseStamp(String stamp) {
+		try {
+			return (stamp != null) ? Long.parseLong(stamp) : 0L;
+
+		} catch (NumberFormatException ex) {
+			return 0L;
+		}
+	}
+
+	/**
+	 * Processes resources as they are discovered, spilling the compaction map,
+	 * integrity digests, dependencies and child links to disk in sorted runs
+	 * whenever the map exceeds the manifest limit. Spilled paths stay processed
+	 * and are read back from disk when referenced again.
+	 * Resources are compacted sequentially in this mode.
+	 * @throws IOException 
+	 * @throws NoSuchAlgorithmException 
+	 */
+	private void executeStreaming()
+			throws IOException, NoSuchAlgorithmException {
+
+		final int limit = settings.getManifestLimit();
+		DiffReport diff = (settings.getBaselineMapFile() != null) ? new DiffReport(settings) : null;
+		spool = new ManifestSpool();
+		integritySpool = new ManifestSpool();
+		dependencySpool = new ManifestSpool();
+		linkSpool = new ManifestSpool();
+		openArchive();
+		try {
+			planCommonChunks();
+			walkFiles(new FileHandler() {
+				@Override
+				public void handle(File source, String path)
+						throws IOException, NoSuchAlgorithmException {
+
+					processResource(path, source);
+
+					if (hashLookup.size() >= limit) {
+						spill();
+					}
+				}
+			});
+
+			reportDuplicates();
+			writeCompactionMap();
+			writeChildLinksMap();
+			commitArchive();
+
+			if (cache != null) {
+				cache.evict(settings.getCacheLimit());
+			}
+			if (diff != null) {
+				diff.write();
+			}
+
+		} finally {
+			closeArchive();
+			commonChunks = null;
+			importCache.clear();
+			for (ManifestSpool spilled : new ManifestSpool[] { spool, integritySpool, dependencySpool, linkSpool }) {
+				spilled.clear();
+			}
+			spool = integritySpool = dependencySpool = linkSpool = null;
+			outputIndex.clear();
+		}
+	}
+
+	/**
+	 * Moves everything held per path to disk. Dependencies are always processed
+	 * before their dependents, so child links are propagated first.
+	 * @throws IOException
+	 */
+	private void spill()
+			throws IOException {
+
+		for (String path : this.dependencyMap.keySet()) {
+			addTransitiveChildLinks(path);
+		}
+
+		spool.spill(hashLookup);
+		integritySpool.spill(getIntegrityDigests());
+		dependencySpool.spill(joinLists(dependencyMap));
+		linkSpool.spill(joinLists(childLinkMap));
+		reportDuplicates();
+
+		hashLookup.clear();
+		integrity.clear();
+		dependencyMap.clear();
+		childLinkMap.clear();
+		outputIndex.clear();
+		// only once nothing still holds pooled paths
+		pathPool.clear();
+	}
+
+	/**
+	 * @return the integrity digest of each processed path, in map order
+	 */
+	private Map<String, String> getIntegrityDigests() {
+		Map<String, String> digests = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, String> entry : hashLookup.entrySet()) {
+			String digest = integrity.get(entry.getValue());
+			if (digest != null) {
+				digests.put(entry.getKey(), digest);
+			}
+		}
+		return digests;
+	}
+
+	private static Map<String, String> joinLists(Map<String, List<String>> lists) {
+		Map<String, String> joined = new HashMap<String, String>(lists.size());
+		for (Map.Entry<String, List<String>> entry : lists.entrySet()) {
+			StringBuilder buffer = new StringBuilder();
+			for (String item : entry.getValue()) {
+				if (buffer.length() > 0) {
+					buffer.append(SPILLED_LIST_DELIM);
+				}
+				buffer.append(item);
+			}
+			joined.put(entry.getKey(), buffer.toString());
+		}
+		return joined;
+	}
+
+	private static List<String> getSpilledList(ManifestSpool spilled, String key) {
+		String joined = (spilled != null) ? spilled.get(key) : null;
+		if (joined == null || joined.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return Arrays.asList(joined.split(SPILLED_LIST_DELIM));
+	}
+
+	/**
+	 * Reads every merge file ahead of compaction, as the members they share
+	 * change the output, and so the hash, of each
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	private void planCommonChunks()
+			throws IOException, NoSuchAlgorithmException {
+
+		int threshold = settings.getCommonChunkThreshold();
+		if (threshold < 2 || !(getCompactor(MergeCompactor.EXT) instanceof MergeCompactor)) {
+			return;
+		}
+
+		final Map<String, List<String>> bundles = new TreeMap<String, List<String>>();
+		walkFiles(Collections.singleton(MergeCompactor.EXT), null, new FileHandler() {
+			@Override
+			public void handle(File source, String path)
+					throws IOException {
+
+				bundles.put(path, MergeCompactor.readMembers(source));
+			}
+		});
+
+		commonChunks = CommonChunkPlan.create(settings, bundles, threshold);
+	}
+
+	/**
+	 * @return the members shared between merge files, or null if not extracting common chunks
+	 */
+	CommonChunkPlan getCommonChunkPlan() {
+		return commonChunks;
+	}
+
+	/**
+	 * @return the stylesheets scanned for @import during this build
+	 */
+	CssImportCache getImportCache() {
+		return importCache;
+	}
+
+	private void openArchive()
+			throws IOException {
+
+		File archiveFile = settings.getArchiveFile();
+		if (archiveFile != null) {
+			archive = new OutputArchive(archiveFile, settings.getCompressionLevel());
+		}
+	}
+
+	private void commitArchive()
+			throws IOException {
+
+		if (archive != null) {
+			archive.commit();
+			log.info("Archived "+archive.size()+" files to "+settings.getArchiveFile());
+		}
+	}
+
+	private void closeArchive() {
+		if (archive != null) {
+			archive.close();
+			archive = null;
+		}
+	}
+
+	/**
+	 * Adds any output not already streamed into the archive, e.g., reused from a previous build
+	 * @param hashPath
+	 * @throws IOException
+	 */
+	private void archiveOutput(String hashPath)
+			throws IOException {
+
+		String name = toArchiveName(hashPath);
+		File target = settings.getTargetFile(hashPath);
+		if (!archive.contains(name) && target.isFile()) {
+			archive.add(name, target);
+		}
+
+		File gzipped = new File(target.getPath()+GZIP_EXT);
+		if (!archive.contains(name+GZIP_EXT) && gzipped.isFile()) {
+			archive.add(name+GZIP_EXT, gzipped);
+		}
+	}
+
+	private static String toArchiveName(String hashPath) {
+		return hashPath.startsWith("/") ? hashPath.substring(1) : hashPath;
+	}
+
+	public Settings getSettings() {
+		return settings;
+	}
+
+	public BuildListener getBuildListener() {
+		return listener;
+	}
+
+	/**
+	 * @param listener receives progress events, or null for none
+	 */
+	public void setBuildListener(BuildListener listener) {
+		this.listener = listener;
 	}
 
 	public boolean isProcessed(String path) {
-		return hashLookup.containsKey(path);
+		return hashLookup.containsKey(path) || isSpilled(path);
+	}
+
+	/**
+	 * @param path
+	 * @return true if processed before the compaction map was last spilled
+	 */
+	private boolean isSpilled(String path) {
+		return spool != null && !hashLookup.containsKey(path) && spool.contains(path);
 	}
 
 	public String getProcessedPath(String path) {
-		return hashLookup.get(path);
+		String hashPath = hashLookup.get(path);
+		if (hashPath == null && spool != null) {
+			hashPath = spool.get(path);
+		}
+		return hashPath;
 	}
 
 	public String getPlaceholderPath(String path) {
-		String hashed = hashLookup.get(path);
+		String hashed = getProcessedPath(path);
 		if (hashed == null || hashed.isEmpty()) {
 			return path;
 		}
 
-		hashed = hashLookup.get(hashed);
+		hashed = getProcessedPath(hashed);
 		if (hashed == null || hashed.isEmpty()) {
 			return path;
 		}
@@ -114,7 +658,7 @@ public class BuildManager {
 	}
 
 	public void setProcessedPath(String path, String hashPath) {
-		hashLookup.put(path, hashPath);
+		hashLookup.put(pooled(path), pooled(hashPath));
 	}
 
 	private void removeProcessedPath(String path) {
@@ -132,9 +676,15 @@ public class BuildManager {
 
 		} catch (NoSuchAlgorithmException e) {
 			log.error(e.getMessage(), e);
+			if (listener != null) {
+				listener.onFailed(path, e.getMessage(), e);
+			}
 
 		} catch (IOException e) {
 			log.error(e.getMessage(), e);
+			if (listener != null) {
+				listener.onFailed(path, e.getMessage(), e);
+			}
 		}
 	}
 	
@@ -144,45 +694,64 @@ public class BuildManager {
 		// keep track of currently compacting paths to prevent cycles
 		if (dependencyChain.contains(path)) {
 			log.error("Cyclical dependencies detected in: "+path);
+			if (listener != null) {
+				listener.onFailed(path, "Cyclical dependencies", null);
+			}
 			return;
 		}
 		dependencyChain.push(path);
 
 		try {
-			String sourceExt = getExtension( source.getCanonicalPath() );
-			Compactor compactor = compactors.get(sourceExt);
-			if (compactor == null) {
-				log.error("No compactor registered for "+sourceExt);
+			if (isSpilled(path)) {
+				// already emitted, along with its output
 				return;
 			}
 
 			File target;
+			boolean fresh = true;
+			Future<String> task = pending.remove(path);
 			if (isProcessed(path)) {
 				target = getTargetFile(path);
+				fresh = false;
+
+			} else if (previousLookup.containsKey(path)) {
+				// unchanged since previous build
+				setProcessedPath(path, previousLookup.get(path));
+				target = getTargetFile(path);
+
+			} else if (task != null) {
+				// compacted in the background
+				setProcessedPath(path, awaitPending(task));
+				target = getTargetFile(path);
 
 			} else {
-				MessageDigest hash = MessageDigest.getInstance(HASH_ALGORITHM);
-				if (source != null && source.exists()) {
-					compactor.calcHash(this, hash, path, source);
+				// only created once a resource actually needs compacting
+				String sourceExt = getExtension( source.getCanonicalPath() );
+				Compactor compactor = getCompactor(sourceExt);
+				if (compactor == null) {
+					log.error("No compactor registered for "+sourceExt);
+					if (listener != null) {
+						listener.onFailed(path, "No compactor registered for "+sourceExt, null);
+					}
+					return;
 				}
-				String hashPath = encodeBytes(hash.digest());
-				String targetExt = compactor.getTargetExtension(this, path);
-				setProcessedPath(path, settings.getCDNRoot()+hashPath+targetExt);
+
+				// read once for both hashing and compaction
+				Resource resource = new Resource(path, source);
+				String hashPath = calcHashPath(compactor, resource);
+				setProcessedPath(path, hashPath);
 
 				target = getTargetFile(path);
-				if (source.exists()) {
-					// ensure target path exists
-					target.getParentFile().mkdirs();
-		
-					// ensure the file has been compacted
-					compactor.compact(this, path, source, target);
-				}
+				compactResource(compactor, resource, hashPath);
 			}
 
 			if (!target.exists()) {
 				// file still missing, remove
 				log.error(path+" failed to compact (output missing)");
 				removeProcessedPath(path);
+				if (listener != null) {
+					listener.onFailed(path, "Output missing", null);
+				}
 	
 			} else if (target.length() < 1L) {
 				if (source.length() < 1L) {
@@ -201,26 +770,284 @@ public class BuildManager {
 				}
 			}
 
+			if (target.length() > 0L && isProcessed(path)) {
+				finishOutput(getProcessedPath(path), target, fresh);
+			}
+
 		} finally {
 			dependencyChain.pop();
 		}
 	}
 
+	/**
+	 * Generates the hashed output path for a resource
+	 * @param compactor
+	 * @param resource
+	 * @return
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	private String calcHashPath(Compactor compactor, Resource resource)
+			throws IOException, NoSuchAlgorithmException {
+
+		// read once as the listener may be replaced while worker threads run
+		BuildListener listener = this.listener;
+		long start = (listener != null) ? System.nanoTime() : 0L;
+		String path = resource.getPath();
+		File source = resource.getFile();
+
+		MessageDigest hash = MessageDigest.getInstance(settings.getHashAlgorithm());
+		if (source != null && source.exists()) {
+			CompactorAdapter.adapt(compactor).calcHash(this, hash, resource);
+		}
+		String targetExt = compactor.getTargetExtension(this, path);
+		String hashPath = settings.getHashPath(encodeBytes(hash.digest()), targetExt);
+
+		if (listener != null) {
+			listener.onHashed(path, hashPath, (source != null) ? resource.getLength() : 0L, System.nanoTime()-start);
+		}
+		return hashPath;
+	}
+
+	/**
+	 * Compacts a resource into its hashed output path, reusing any cached output
+	 * @param compactor
+	 * @param resource
+	 * @param hashPath
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	private void compactResource(Compactor compactor, Resource resource, String hashPath)
+			throws IOException, NoSuchAlgorithmException {
+
+		String path = resource.getPath();
+		if (!resource.getFile().exists()) {
+			return;
+		}
+
+		File target = settings.getTargetFile(hashPath);
+
+		// ensure target path exists
+		target.getParentFile().mkdirs();
+
+		BuildListener listener = this.listener;
+		long start = (listener != null) ? System.nanoTime() : 0L;
+
+		if (!(compactor instanceof IsolatedCompactor)) {
+			// ensure the file has been compacted
+			CompactorAdapter.adapt(compactor).compact(this, resource, target);
+			if (listener != null) {
+				listener.onCompacted(path, hashPath, target.length(), System.nanoTime()-start);
+			}
+			return;
+		}
+
+		// identical sources share the same output so only the first is compacted
+		OutputOwner owner = new OutputOwner(path);
+		synchronized (owner) {
+			OutputOwner prior = outputIndex.putIfAbsent(hashPath, owner);
+			if (prior != null) {
+				duplicates.put(path, prior.path);
+				synchronized (prior) {
+					// wait until written by the first path
+					return;
+				}
+			}
+
+			// plain copies gain nothing from caching, nor does output of unknown provenance
+			String cacheKey = null;
+			String compactorVersion = getCompactorVersion(compactor);
+			if (cache != null && compactor.getClass() != NullCompactor.class && compactorVersion != null) {
+				MessageDigest hash = MessageDigest.getInstance(settings.getHashAlgorithm());
+				// keyed by file name alone so differing CDN roots share entries,
+				// and by release so a shared cache never serves output from older code
+				hash.update((compactor.getClass().getName()+'@'+compactorVersion+':'+hashPath.substring(hashPath.lastIndexOf('/')+1)).getBytes("UTF-8"));
+				cacheKey = encodeBytes(hash.digest())+getExtension(hashPath);
+
+				if (cache.restore(cacheKey, target)) {
+					log.info("Cached: {}", path);
+					if (listener != null) {
+						listener.onCacheHit(path, hashPath, target.length(), System.nanoTime()-start);
+					}
+					return;
+				}
+			}
+
+			// ensure the file has been compacted
+			CompactorAdapter.adapt(compactor).compact(this, resource, target);
+			if (listener != null) {
+				listener.onCompacted(path, hashPath, target.length(), System.nanoTime()-start);
+			}
+
+			if (cacheKey != null) {
+				cache.store(cacheKey, target);
+			}
+		}
+	}
+
+	/**
+	 * Logs source files whose content duplicates another, as these were only compacted once
+	 */
+	private void reportDuplicates() {
+		if (duplicates.isEmpty()) {
+			return;
+		}
+
+		for (Map.Entry<String, String> duplicate : duplicates.entrySet()) {
+			log.info("Duplicate content: {} => {}", duplicate.getKey(), duplicate.getValue());
+		}
+		log.warn(duplicates.size()+" source files duplicate the content of others");
+		duplicates.clear();
+	}
+
+	/**
+	 * Writes output which has no source file of its own, e.g., a sprite sheet
+	 * @param path the key under which the output is listed
+	 * @param content
+	 * @param targetExt
+	 * @return the hashed output path
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public String writeGeneratedResource(String path, byte[] content, String targetExt)
+			throws IOException, NoSuchAlgorithmException {
+
+		MessageDigest hash = MessageDigest.getInstance(settings.getHashAlgorithm());
+		hash.update(content);
+		String hashPath = settings.getHashPath(encodeBytes(hash.digest()), targetExt);
+
+		String algorithm = settings.getIntegrityAlgorithm();
+		if (algorithm != null && !integrity.containsKey(hashPath)) {
+			MessageDigest digest = MessageDigest.getInstance(algorithm);
+			integrity.put(hashPath, formatIntegrity(algorithm, digest.digest(content)));
+		}
+
+		File target = settings.getTargetFile(hashPath);
+		if (!target.exists()) {
+			target.getParentFile().mkdirs();
+
+			FileOutputStream stream = new FileOutputStream(target);
+			try {
+				stream.write(content);
+
+			} finally {
+				stream.flush();
+				stream.close();
+			}
+
+			// only compresses as the digest is known
+			finishOutput(hashPath, target, true);
+		}
+
+		setProcessedPath(path, hashPath);
+		return hashPath;
+	}
+
+	/**
+	 * Reads the output once to write a gzipped sibling for servers which negotiate
+	 * precompressed content and to calculate its Subresource Integrity digest, as needed
+	 * @param hashPath
+	 * @param target
+	 * @param fresh false if the output has already been finished in this build
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	private void finishOutput(String hashPath, File target, boolean fresh)
+			throws IOException, NoSuchAlgorithmException {
+
+		String algorithm = settings.getIntegrityAlgorithm();
+		MessageDigest digest = (algorithm != null && !integrity.containsKey(hashPath)) ?
+			MessageDigest.getInstance(algorithm) : null;
+
+		// names are content hashes so any existing sibling is unchanged
+		File gzipped = new File(target.getPath()+GZIP_EXT);
+		final int level = settings.getCompressionLevel();
+		boolean compress = fresh && level > 0 && !gzipped.exists();
+
+		// streamed into the archive in the same pass
+		boolean archived = (archive != null) &&
+			archive.begin(toArchiveName(hashPath), target.length(), target.lastModified());
+
+		if (digest == null && !compress && !archived) {
+			return;
+		}
+
+		final byte[] buffer = new byte[BUFFER_SIZE];
+
+		FileInputStream inStream = new FileInputStream(target);
+		try {
+			GZIPOutputStream outStream = !compress ? null :
+				new GZIPOutputStream(new FileOutputStream(gzipped), BUFFER_SIZE) {
+					{
+						def.setLevel(level);
+					}
+				};
+			try {
+				int count;
+				while ((count = inStream.read(buffer)) > 0) {
+					if (digest != null) {
+						digest.update(buffer, 0, count);
+					}
+					if (outStream != null) {
+						outStream.write(buffer, 0, count);
+					}
+					if (archived) {
+						archive.write(buffer, 0, count);
+					}
+				}
+
+			} finally {
+				if (outStream != null) {
+					outStream.finish();
+					outStream.close();
+				}
+			}
+
+		} finally {
+			inStream.close();
+		}
+
+		if (archived) {
+			archive.end();
+			if (gzipped.isFile()) {
+				archive.add(toArchiveName(hashPath)+GZIP_EXT, gzipped);
+			}
+		}
+
+		if (digest != null) {
+			integrity.put(hashPath, formatIntegrity(algorithm, digest.digest()));
+		}
+	}
+
+	/**
+	 * Formats a digest as a Subresource Integrity value, e.g., "sha384-..."
+	 */
+	private static String formatIntegrity(String algorithm, byte[] digest) {
+		return algorithm.replace("-", "").toLowerCase()+'-'+Base64.getEncoder().encodeToString(digest);
+	}
+
 	public void addChildLink(String path, String child) {
 		List<String> children = childLinkMap.get(path);
 		if (children == null) {
 			children = new ArrayList<String>();
-			childLinkMap.put(path, children);
+			childLinkMap.put(pooled(path), children);
 		}
 		if (!children.contains(child)) {
-			children.add(child);
+			children.add(pooled(child));
+		}
+	}
+
+	public void removeChildLink(String path, String child) {
+		List<String> children = childLinkMap.get(path);
+		if (children != null) {
+			children.remove(child);
 		}
 	}
 
 	public List<String> getChildLinks(String path) {
 		List<String> children = childLinkMap.get(path);
 		if (children == null) {
-			children = Collections.emptyList();
+			children = getSpilledList(linkSpool, path);
 		}
 		return children;
 	}
@@ -229,21 +1056,62 @@ public class BuildManager {
 		List<String> dependencies = dependencyMap.get(path);
 		if (dependencies == null) {
 			dependencies = new ArrayList<String>();
-			dependencyMap.put(path, dependencies);
+			dependencyMap.put(pooled(path), dependencies);
 		}
 		if (!dependencies.contains(dependency)) {
-			dependencies.add(dependency);
+			dependencies.add(pooled(dependency));
 		}
 	}
 
 	public List<String> getDependencies(String path) {
 		List<String> dependencies = dependencyMap.get(path);
 		if (dependencies == null) {
-			dependencies = Collections.emptyList();
+			dependencies = getSpilledList(dependencySpool, path);
 		}
 		return dependencies;
 	}
 
+	/**
+	 * Gets the short name used to enable or disable a compactor, e.g., "js" for JSCompactor
+	 * @param compactor
+	 * @return
+	 */
+	static String getCompactorName(Compactor compactor) {
+		String name = compactor.getClass().getSimpleName();
+		if (name.endsWith("Compactor")) {
+			name = name.substring(0, name.length()-"Compactor".length());
+		}
+		return name.toLowerCase();
+	}
+
+	/**
+	 * Gets the release of the artifact which defines a compactor
+	 * @param compactor
+	 * @return null if unknown, e.g., when not loaded from a packaged jar
+	 */
+	static String getCompactorVersion(Compactor compactor) {
+		Package definition = compactor.getClass().getPackage();
+		return (definition != null) ? definition.getImplementationVersion() : null;
+	}
+
+	/**
+	 * Shares a single instance for equal paths across the various maps
+	 * @param path
+	 * @return
+	 */
+	private String pooled(String path) {
+		if (path == null) {
+			return null;
+		}
+
+		String pooled = pathPool.get(path);
+		if (pooled == null) {
+			pathPool.put(path, path);
+			pooled = path;
+		}
+		return pooled;
+	}
+
 	public static String getExtension(String path) {
 		// query and hash
 		int query = path.indexOf('?');
@@ -263,7 +1131,7 @@ public class BuildManager {
 		return path.substring(dot).toLowerCase();
 	}
 
-	private static String encodeBytes(byte[] digest) {
+	static String encodeBytes(byte[] digest) {
 		StringBuilder hex = new StringBuilder();
 		for (int i=0; i<digest.length; i++) {
 			int digit = 0xFF & digest[i];
@@ -282,42 +1150,155 @@ public class BuildManager {
 	}
 
 	private Map<File, String> findFiles()
-			throws IOException {
+			throws IOException, NoSuchAlgorithmException {
+
+		final Map<File, String> files = new LinkedHashMap<File, String>();
+
+		walkFiles(new FileHandler() {
+			@Override
+			public void handle(File source, String path) {
+				files.put(source, path);
+			}
+		});
+
+		return files;
+	}
+
+	/**
+	 * Visits each input file in breadth-first order.
+	 * Only pending directories are queued, files are handled as they are listed.
+	 * @param handler
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	private void walkFiles(FileHandler handler)
+			throws IOException, NoSuchAlgorithmException {
+
+		walkFiles(getExtensions(), listener, handler);
+	}
+
+	/**
+	 * @param extensions the source extensions to handle
+	 * @param listener notified of each file found, or null
+	 * @param handler
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	private void walkFiles(Set<String> extensions, BuildListener listener, FileHandler handler)
+			throws IOException, NoSuchAlgorithmException {
 
-		Set<String> extensions = getExtensions();
 		String filterPath = settings.getCDNDir().getCanonicalPath();
 		Queue<File> folders = new LinkedList<File>();
-		Map<File, String> files = new LinkedHashMap<File, String>();
+		Set<String> visited = new HashSet<String>();
 
 		for (File inputDir : new File[] { settings.getSourceDir(), settings.getTargetDir() }) {
-			int rootPrefix = inputDir.getCanonicalPath().length();
+			String rootPath = inputDir.getCanonicalPath();
+			if (!visited.add(rootPath)) {
+				// source and target are the same
+				continue;
+			}
+			int rootPrefix = rootPath.length();
 
 			folders.add(inputDir);
 			while (!folders.isEmpty()) {
-				File file = folders.remove();
-
-				if (file.getCanonicalPath().startsWith(filterPath)) {
-					// filter any output files, e.g., if dirs overlap
+				File[] children = folders.remove().listFiles();
+				if (children == null) {
 					continue;
 				}
 
-				if (file.isDirectory()) {
-					folders.addAll(Arrays.asList(file.listFiles()));
-					continue;
-				}
+				for (File file : children) {
+					String canonicalPath = file.getCanonicalPath();
+					if (canonicalPath.startsWith(filterPath)) {
+						// filter any output files, e.g., if dirs overlap
+						continue;
+					}
 
-				String ext = BuildManager.getExtension(file.getCanonicalPath());
-				if (extensions.contains(ext)) {
-					files.put(file, file.getCanonicalPath().substring(rootPrefix));
+					if (file.isDirectory()) {
+						folders.add(file);
+						continue;
+					}
+
+					String ext = BuildManager.getExtension(canonicalPath);
+					if (extensions.contains(ext)) {
+						String path = canonicalPath.substring(rootPrefix);
+						if (listener != null) {
+							listener.onDiscovered(path, file);
+						}
+						handler.handle(file, path);
+					}
 				}
 			}
 		}
+	}
+
+	private static class OutputOwner {
+		public final String path;
+
+		public OutputOwner(String path) {
+			this.path = path;
+		}
+	}
 
-		return files;
+	private interface FileHandler {
+		void handle(File source, String path)
+			throws IOException, NoSuchAlgorithmException;
 	}
 
-	private Set<String> getExtensions() {
-		return this.compactors.keySet();
+	private synchronized Set<String> getExtensions() {
+		Set<String> extensions = new HashSet<String>(this.compactors.keySet());
+		extensions.addAll(this.providers.keySet());
+		return extensions;
+	}
+
+	/**
+	 * Determines if the compactor for an extension is isolated, without creating it
+	 * @param ext
+	 * @return
+	 */
+	private synchronized boolean isIsolated(String ext) {
+		CompactorProvider provider = this.providers.get(ext);
+		if (provider == null) {
+			return (this.compactors.get(ext) instanceof IsolatedCompactor);
+		}
+
+		// disabled compactors are bypassed by an isolated NullCompactor
+		return provider.isIsolated() || !settings.isCompactorEnabled(provider.getName());
+	}
+
+	/**
+	 * Gets the compactor for an extension, creating it if only its provider is registered
+	 * @param ext
+	 * @return null if no compactor is registered
+	 */
+	private synchronized Compactor getCompactor(String ext) {
+		Compactor compactor = this.compactors.get(ext);
+		if (compactor != null) {
+			return compactor;
+		}
+
+		CompactorProvider provider = this.providers.get(ext);
+		if (provider == null) {
+			return null;
+		}
+
+		if (settings.isCompactorEnabled(provider.getName())) {
+			log.debug("Creating {} compactor", provider.getName());
+			compactor = provider.create(settings);
+
+		} else {
+			// bypass by copying the files unmodified
+			compactor = new NullCompactor(provider.getSourceExtensions(settings));
+		}
+
+		// the same instance serves each extension which the provider still holds
+		for (Iterator<Map.Entry<String, CompactorProvider>> it = this.providers.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String, CompactorProvider> entry = it.next();
+			if (entry.getValue() == provider) {
+				this.compactors.put(entry.getKey(), compactor);
+				it.remove();
+			}
+		}
+		return compactor;
 	}
 
 	private void writeCompactionMap()
@@ -327,29 +1308,100 @@ public class BuildManager {
 
 		cdnMapFile.getParentFile().mkdirs();
 
-		FileWriter writer = new FileWriter(cdnMapFile, false);
+		// all manifests from one build share a version stamp
+		String stamp = VERSION_PREFIX+System.currentTimeMillis()+NEWLINE;
+		this.version = stamp;
+
+		AtomicFileWriter integrityWriter = null;
+		if (settings.getIntegrityAlgorithm() != null) {
+			File integrityFile = settings.getCDNIntegrityFile();
+			integrityFile.getParentFile().mkdirs();
+			integrityWriter = new AtomicFileWriter(integrityFile);
+			integrityWriter.append(stamp);
+		}
+
+		AtomicFileWriter writer = new AtomicFileWriter(cdnMapFile);
 		try {
-			writeCompactionMap(writer);
+			writer.append(stamp);
+			// lets the next build tell whether this output is still current
+			writer.append(STAMP_PREFIX+SETTINGS_STAMP+'='+settings.getFingerprint()+NEWLINE);
+			writer.append(STAMP_PREFIX+STARTED_STAMP+'='+started+NEWLINE);
+			writeCompactionMap(writer, integrityWriter);
+
+			// published before the map so that readers never see a map without its integrity values
+			if (integrityWriter != null) {
+				integrityWriter.commit();
+			}
+			writer.commit();
 
 		} finally {
-			writer.flush();
 			writer.close();
+			if (integrityWriter != null) {
+				integrityWriter.close();
+			}
 		}
 	}
 
-	private void writeCompactionMap(Appendable output)
+	/**
+	 * @param output receives the compaction map
+	 * @param integrityOutput receives the integrity manifest keyed like the compaction map, or null
+	 * @throws IOException
+	 */
+	private void writeCompactionMap(final Appendable output, final Appendable integrityOutput)
 			throws IOException {
 
+		ManifestSpool.EntryHandler handler = new ManifestSpool.EntryHandler() {
+			@Override
+			public void handle(String key, String value)
+					throws IOException {
+
+				output
+					.append(key)
+					.append('=')
+					.append(escapePropertyValue(value))
+					.append(NEWLINE);
+
+				if (archive != null) {
+					archiveOutput(value);
+				}
+			}
+		};
+
 		// generate output
-		for (String key : hashLookup.keySet()) {
-			String value = hashLookup.get(key);
-			value = escapePropertyValue(value);
+		writeEntries(spool, hashLookup, handler);
+
+		if (integrityOutput != null) {
+			writeEntries(integritySpool, getIntegrityDigests(), new ManifestSpool.EntryHandler() {
+				@Override
+				public void handle(String key, String digest)
+						throws IOException {
+
+					integrityOutput
+						.append(key)
+						.append('=')
+						.append(digest)
+						.append(NEWLINE);
+				}
+			});
+		}
+	}
+
+	/**
+	 * @param spilled entries already spilled, or null if not streaming
+	 * @param entries entries still in memory
+	 * @param handler
+	 * @throws IOException
+	 */
+	private static void writeEntries(ManifestSpool spilled, Map<String, String> entries, ManifestSpool.EntryHandler handler)
+			throws IOException {
 
-			output
-				.append(key)
-				.append('=')
-				.append(value)
-				.append(NEWLINE);
+		if (spilled != null) {
+			spilled.merge(entries, handler);
+			return;
+		}
+
+		for (Map.Entry<String, String> entry : entries.entrySet()) {
+			handler.handle(entry.getKey(), entry.getValue());
 		}
 	}
 
@@ -359,17 +1411,18 @@ public class BuildManager {
 		File cdnLinksFile = settings.getCDNLinksFile();
 		cdnLinksFile.getParentFile().mkdirs();
 
-		FileWriter writer = new FileWriter(cdnLinksFile, false);
+		AtomicFileWriter writer = new AtomicFileWriter(cdnLinksFile);
 		try {
+			writer.append(version);
 			writeChildLinksMap(writer);
+			writer.commit();
 
 		} finally {
-			writer.flush();
 			writer.close();
 		}
 	}
 
-	private void writeChildLinksMap(Appendable output)
+	private void writeChildLinksMap(final Appendable output)
 			throws IOException {
 
 		// propagate transitive children to dependents
@@ -378,30 +1431,46 @@ public class BuildManager {
 		}
 
 		// generate output
+		if (linkSpool != null) {
+			linkSpool.merge(joinLists(childLinkMap), new ManifestSpool.EntryHandler() {
+				@Override
+				public void handle(String key, String children)
+						throws IOException {
+
+					writeChildLinks(output, key, Arrays.asList(children.split(SPILLED_LIST_DELIM)));
+				}
+			});
+			return;
+		}
+
 		for (String key : childLinkMap.keySet()) {
-			List<String> children = childLinkMap.get(key);
+			writeChildLinks(output, key, childLinkMap.get(key));
+		}
+	}
 
-			boolean needsDelim = false;
-			output
-				.append(key)
-				.append('=');
+	private static void writeChildLinks(Appendable output, String key, List<String> children)
+			throws IOException {
 
-			for (String child : children) {
-				if (needsDelim) {
-					output.append(PROPERTY_LIST_DELIM);
-				} else {
-					needsDelim = true;
-				}
-				output.append(escapePropertyValue(child));
-			}
+		boolean needsDelim = false;
+		output
+			.append(key)
+			.append('=');
 
-			output.append(NEWLINE);
+		for (String child : children) {
+			if (needsDelim) {
+				output.append(PROPERTY_LIST_DELIM);
+			} else {
+				needsDelim = true;
+			}
+			output.append(escapePropertyValue(child));
 		}
+
+		output.append(NEWLINE);
 	}
 
 	private void addTransitiveChildLinks(String path) {
 		if (!dependencyMap.containsKey(path)) {
-			// no dependencies so nothing to propagate
+			// no dependencies, or spilled once already propagated
 			return;
 		}
 
@@ -409,17 +1478,17 @@ public class BuildManager {
 		for (String dependency : dependencies) {
 			// recursively ripple links up to dependent parents
 			this.addTransitiveChildLinks(dependency);
-			if (!childLinkMap.containsKey(dependency)) {
+			List<String> children = getChildLinks(dependency);
+			if (children.isEmpty()) {
 				// no child links so nothing to propagate
 				continue;
 			}
 
 			// add as if was a direct child of dependent parent 
-			List<String> children = childLinkMap.get(dependency);
 			for (String child : children) {
 				// propagate child link up to aggregate parent
 				this.addChildLink(path, child);
-				log.info("transitive child link: "+path+"=>"+child);
+				log.info("transitive child link: {}=>{}", path, child);
 			}
 		}
 	}
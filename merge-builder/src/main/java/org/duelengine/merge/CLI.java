@@ -1,5 +1,7 @@
 package org.duelengine.merge;
 
+import java.net.InetAddress;
+
 public class CLI {
 
 	private static final String SEPARATOR = "========================================";
@@ -9,9 +11,38 @@ public class CLI {
 			"  -out <target-dir>    : file path to the root of the build output (default: <source-dir>)\n"+
 			"  -map <cdn-map-file>  : path of the generated map resource file\n" +
 			"                         (default: \"<target-dir>/cdn.properties\")\n"+
+			"  -sri <algorithm>     : digest for the Subresource Integrity manifest, e.g., \"SHA-384\"\n" +
+			"                         (written to \"<target-dir>/cdnIntegrity.properties\")\n"+
 			"  -cdn <cdn-root-path> : relative URL path for the cdn output root (default: \"/cdn/\")\n"+
+			"  -shard <levels>      : nest cdn output in this many hash-named directory levels (default: 0)\n"+
 			"  -ext <file-ext-list> : quoted list of file extensions to add to CDN (default: none)\n" +
-			"                         (example: \".png .jpg .gif .ico .woff .ttf .eot .svg\")\n";
+			"                         (example: \".png .jpg .gif .ico .woff .ttf .eot .svg\")\n"+
+			"  -js <level>          : Closure compilation level (default: \"SIMPLE_OPTIMIZATIONS\")\n"+
+			"  -jsprofiles <list>   : quoted list of path-glob=level overrides\n"+
+			"                         (example: \"/lib/**=WHITESPACE_ONLY /app/**=ADVANCED_OPTIMIZATIONS\")\n"+
+			"  -stream <max-entries>: process files as found, spilling the map to disk\n"+
+			"                         past this many entries (default: 0, unbounded)\n"+
+			"  -threads <count>     : threads compacting isolated files (default: 1, 0: all cores)\n"+
+			"  -hash <algorithm>    : digest used to name CDN output (default: \"SHA-1\")\n"+
+			"  -cache <cache-dir>   : directory keeping compacted output between builds\n"+
+			"  -cachelimit <MB>     : evict least recently used cache entries past this size (default: 0, unbounded)\n"+
+			"  -gzip <level>        : deflate level for precompressed .gz siblings (default: 0, none)\n"+
+			"  -archive <file>      : also stream CDN output into a .zip, .jar, .tar or .tar.gz archive\n"+
+			"  -inline <bytes>      : inline CSS assets up to this size as data: URIs (default: 0, none)\n"+
+			"  -sprite <bytes>      : pack no-repeat CSS backgrounds up to this size into sprites (default: 0, none)\n"+
+			"  -flatten             : inline local CSS @import statements\n"+
+			"  -dedupecss           : remove duplicate rules from merged stylesheets\n"+
+			"  -bundle <bytes>      : split merge files past this size into parallel-loaded chunks (default: 0, none)\n"+
+			"  -common <count>      : extract members leading this many merge files into shared chunks (default: 0, none)\n"+
+			"  -asyncdebug          : debug placeholders load files in parallel, preserving order\n"+
+			"  -disable <names>     : quoted list of compactors to bypass (example: \"js css\")\n"+
+			"  -baseline <map-file> : previous cdn.properties to diff against, reported in <target-dir>/cdnDiff.txt\n"+
+			"  -baselinedir <dir>   : output root of the previous build (default: <target-dir>)\n"+
+			"  -budget <bytes>      : fail if any entry grows by more gzipped bytes (default: 0, unbounded)\n"+
+			"  -totalbudget <bytes> : fail if the output grows by more gzipped bytes (default: 0, unbounded)\n"+
+			"  -serve <port>        : after building, serve the output and rebuild on request\n"+
+			"  -bind <address>      : interface the server listens on (default: loopback only)\n"+
+			"                         (warning: any other address exposes the whole webapp, including WEB-INF)\n";
 
 	public static void main(String[] args) {
 		if (args.length < 1) {
@@ -20,6 +51,8 @@ public class CLI {
 		}
 
 		Settings settings = new Settings();
+		int port = 0;
+		String bindAddress = null;
 		System.out.println(SEPARATOR);
 		System.out.println("Merge Builder\n");
 		for (int i=0; i<args.length; i++) {
@@ -34,12 +67,87 @@ public class CLI {
 			} else if ("-map".equals(arg)) {
 				settings.setCDNMapFile(args[++i]);
 
+			} else if ("-sri".equals(arg)) {
+				settings.setIntegrityAlgorithm(args[++i]);
+
 			} else if ("-cdn".equals(arg)) {
 				settings.setCDNRoot(args[++i]);
 
+			} else if ("-shard".equals(arg)) {
+				settings.setShardDepth(Integer.parseInt(args[++i]));
+
 			} else if ("-ext".equals(arg)) {
 				settings.setExtensionList(args[++i]);
 
+			} else if ("-js".equals(arg)) {
+				settings.setJSCompilation(args[++i]);
+
+			} else if ("-jsprofiles".equals(arg)) {
+				settings.setJSCompilationProfileList(args[++i]);
+
+			} else if ("-stream".equals(arg)) {
+				settings.setManifestLimit(Integer.parseInt(args[++i]));
+
+			} else if ("-threads".equals(arg)) {
+				settings.setThreads(Integer.parseInt(args[++i]));
+
+			} else if ("-hash".equals(arg)) {
+				settings.setHashAlgorithm(args[++i]);
+
+			} else if ("-cache".equals(arg)) {
+				settings.setCacheDir(args[++i]);
+
+			} else if ("-cachelimit".equals(arg)) {
+				settings.setCacheLimit(Integer.parseInt(args[++i]));
+
+			} else if ("-gzip".equals(arg)) {
+				settings.setCompressionLevel(Integer.parseInt(args[++i]));
+
+			} else if ("-archive".equals(arg)) {
+				settings.setArchiveFile(args[++i]);
+
+			} else if ("-inline".equals(arg)) {
+				settings.setInlineLimit(Integer.parseInt(args[++i]));
+
+			} else if ("-sprite".equals(arg)) {
+				settings.setSpriteLimit(Integer.parseInt(args[++i]));
+
+			} else if ("-flatten".equals(arg)) {
+				settings.setFlattenImports(true);
+
+			} else if ("-dedupecss".equals(arg)) {
+				settings.setDedupeCss(true);
+
+			} else if ("-bundle".equals(arg)) {
+				settings.setBundleLimit(Integer.parseInt(args[++i]));
+
+			} else if ("-common".equals(arg)) {
+				settings.setCommonChunkThreshold(Integer.parseInt(args[++i]));
+
+			} else if ("-asyncdebug".equals(arg)) {
+				settings.setAsyncPlaceholders(true);
+
+			} else if ("-disable".equals(arg)) {
+				settings.setDisabledCompactorList(args[++i]);
+
+			} else if ("-baseline".equals(arg)) {
+				settings.setBaselineMapFile(args[++i]);
+
+			} else if ("-baselinedir".equals(arg)) {
+				settings.setBaselineDir(args[++i]);
+
+			} else if ("-budget".equals(arg)) {
+				settings.setSizeBudget(Integer.parseInt(args[++i]));
+
+			} else if ("-totalbudget".equals(arg)) {
+				settings.setTotalSizeBudget(Integer.parseInt(args[++i]));
+
+			} else if ("-serve".equals(arg)) {
+				port = Integer.parseInt(args[++i]);
+
+			} else if ("-bind".equals(arg)) {
+				bindAddress = args[++i];
+
 			} else if ("--help".equalsIgnoreCase(arg)) {
 				System.out.println(HELP);
 				System.out.println(SEPARATOR);
@@ -55,8 +163,19 @@ public class CLI {
 		try {
 			new BuildManager(settings).execute();
 
+			if (port > 0) {
+				InetAddress address = (bindAddress != null) ? InetAddress.getByName(bindAddress) : null;
+				new DevServer(settings, address, port).start();
+			}
+
+		} catch (BudgetExceededException ex) {
+			System.err.println(ex.getMessage());
+			// fail scripted builds
+			System.exit(1);
+
 		} catch (Exception ex) {
 			ex.printStackTrace(System.err);
+			System.exit(1);
 		}
 	}
 }
\ No newline at end of file
@@ -1,20 +1,66 @@
 package org.duelengine.merge;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.duelengine.css.codegen.CodeGenSettings;
 import org.duelengine.css.compiler.CssCompiler;
 
-class CSSCompactor extends NullCompactor {
+/**
+ * Output depends upon the hashed paths of linked resources so is not an {@link IsolatedCompactor}
+ */
+class CSSCompactor implements Compactor {
 	public static final String CSS_EXT = ".css";
 	public static final String LESS_EXT = ".less";
+	private static final String CHAR_ENCODING = "UTF-8";
+	private static final Pattern URL_PATTERN = Pattern.compile("url\\(\\s*[\"']?([^\"')]*)[\"']?\\s*\\)");
 
 	private final CssCompiler compiler = new CssCompiler();
 	private final CodeGenSettings settings = new CodeGenSettings();
+	private final NullCompactor raw = new NullCompactor(CSS_EXT, LESS_EXT);
 
-	public CSSCompactor() {
-		super(CSS_EXT, LESS_EXT);
+	/**
+	 * Defers loading the CSS compiler until the first stylesheet is found
+	 */
+	public static class Provider implements CompactorProvider {
+
+		@Override
+		public String getName() {
+			return "css";
+		}
+
+		@Override
+		public String[] getSourceExtensions(Settings settings) {
+			return new String[] { CSS_EXT, LESS_EXT };
+		}
+
+		@Override
+		public boolean isIsolated() {
+			return false;
+		}
+
+		@Override
+		public Compactor create(Settings settings) {
+			return new CSSCompactor();
+		}
+	}
+
+	@Override
+	public String[] getSourceExtensions() {
+		return this.raw.getSourceExtensions();
 	}
 
 	@Override
@@ -23,17 +69,167 @@ class CSSCompactor extends NullCompactor {
 			return CSS_EXT;
 		}
 
-		return super.getTargetExtension(manager, path);
+		return this.raw.getTargetExtension(manager, path);
+	}
+
+	@Override
+	public void calcHash(BuildManager manager, MessageDigest hash, String path, File source)
+			throws IOException, NoSuchAlgorithmException {
+
+		this.raw.calcHash(manager, hash, path, source);
+
+		// imported stylesheets may be compiled into the output
+		Settings settings = manager.getSettings();
+		manager.getImportCache().digestImports(settings, path, hash);
+
+		String flattened = null;
+		if (settings.isFlattenImports()) {
+			hash.update("flatten".getBytes(CHAR_ENCODING));
+			flattened = flatten(manager, path);
+		}
+
+		if (settings.getInlineLimit() > 0 || settings.getSpriteLimit() > 0) {
+			// inlined and sprited images are part of the output so their hashed paths become part of the hash
+			if (flattened == null) {
+				CssImportCache.Entry entry = manager.getImportCache().get(settings, path);
+				flattened = (entry != null) ? entry.getText() : read(source);
+			}
+			Matcher urls = URL_PATTERN.matcher(flattened);
+			while (urls.find()) {
+				String val = urls.group(1).trim();
+				if (val.isEmpty() || val.startsWith("data:")) {
+					continue;
+				}
+
+				String[] parts;
+				try {
+					parts = LinkInterceptorCssFilter.splitUrl(path, val);
+
+				} catch (IllegalArgumentException ex) {
+					// unresolvable URLs are left to the filter
+					continue;
+				}
+				if (!parts[1].isEmpty() || !MimeTypes.isEmbeddable(parts[0]) || !parts[0].startsWith("/")) {
+					continue;
+				}
+
+				manager.ensureProcessed(parts[0]);
+				if (LinkInterceptorCssFilter.isInlined(manager, parts[0]) || CssSpriteBuilder.isCandidate(manager, parts[0])) {
+					hash.update(manager.getProcessedPath(parts[0]).getBytes(CHAR_ENCODING));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Inlines local imports, recording each as a dependency of the stylesheet
+	 * @return the flattened stylesheet, or null if nothing was inlined
+	 */
+	private String flatten(BuildManager manager, String path)
+			throws IOException, NoSuchAlgorithmException {
+
+		List<String> inlined = new ArrayList<String>();
+		String flattened = new CssImportFlattener(manager.getSettings(), manager.getImportCache(), path).flatten(path, inlined);
+		for (String child : inlined) {
+			manager.addDependency(path, child);
+		}
+		return flattened;
+	}
+
+	private static String read(File source)
+			throws IOException {
+
+		StringBuilder buffer = new StringBuilder((int)source.length());
+		char[] chars = new char[4096];
+
+		Reader reader = new InputStreamReader(new FileInputStream(source), CHAR_ENCODING);
+		try {
+			int count;
+			while ((count = reader.read(chars)) > 0) {
+				buffer.append(chars, 0, count);
+			}
+
+		} finally {
+			reader.close();
+		}
+
+		return buffer.toString();
 	}
 
 	@Override
 	public void compact(BuildManager manager, String path, File source, File target)
 			throws IOException {
 
-		this.compiler.process(
-			source,
-			target,
-			this.settings,
-			new LinkInterceptorCssFilter(manager, path));
+		File input = source;
+		File tempDir = null;
+		if (manager.getSettings().isFlattenImports()) {
+			String flattened;
+			try {
+				flattened = flatten(manager, path);
+
+			} catch (NoSuchAlgorithmException ex) {
+				throw new IOException(ex);
+			}
+
+			if (flattened != null) {
+				// compiled in place of the source, URLs still resolve against the stylesheet path;
+				// kept out of the CDN output (and the source tree) under the same relative layout
+				tempDir = Files.createTempDirectory("cdn").toFile();
+				input = new File(tempDir, path);
+				input.getParentFile().mkdirs();
+				write(input, flattened);
+			}
+		}
+
+		try {
+			this.compiler.process(
+				input,
+				target,
+				this.settings,
+				new LinkInterceptorCssFilter(manager, path));
+
+		} finally {
+			if (tempDir != null) {
+				delete(tempDir);
+			}
+		}
+
+		if (manager.getSettings().getSpriteLimit() > 0) {
+			String css = read(target);
+			String sprited;
+			try {
+				sprited = CssSpriteBuilder.build(manager, path, css);
+
+			} catch (NoSuchAlgorithmException ex) {
+				throw new IOException(ex);
+			}
+
+			if (!sprited.equals(css)) {
+				write(target, sprited);
+			}
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static void write(File target, String css)
+			throws IOException {
+
+		Writer writer = new OutputStreamWriter(new FileOutputStream(target), CHAR_ENCODING);
+		try {
+			writer.write(css);
+
+		} finally {
+			writer.flush();
+			writer.close();
+		}
 	}
 }
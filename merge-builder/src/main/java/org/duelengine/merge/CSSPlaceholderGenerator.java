@@ -26,6 +26,11 @@ public class CSSPlaceholderGenerator implements PlaceholderGenerator {
 		try {
 			writer.append("/* simulate semantics of merged stylesheets but allow debugging of original files; append anti-caching suffix */\n");
 
+			if (manager.getSettings().isAsyncPlaceholders()) {
+				// a single level of imports is fetched in parallel, rather than chained through nested placeholders
+				children = MergeCompactor.flatten(manager, children);
+			}
+
 			// concatenate references to children
 			for (String child : children) {
 				child = manager.getPlaceholderPath(child);
@@ -43,4 +48,24 @@ public class CSSPlaceholderGenerator implements PlaceholderGenerator {
 			writer.close();
 		}
 	}
+
+	@Override
+	public void buildLoader(BuildManager manager, File target, List<String> urls) throws IOException {
+		target.getParentFile().mkdirs();
+		FileWriter writer = new FileWriter(target, false);
+
+		try {
+			// imports are fetched in parallel and applied in order
+			for (String url : urls) {
+				writer
+					.append("@import url(")
+					.append(url)
+					.append(");\n");
+			}
+
+		} finally {
+			writer.flush();
+			writer.close();
+		}
+	}
 }
@@ -0,0 +1,154 @@
+package org.duelengine.merge;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds runs of members which lead the flattened member lists of several merge files.
+ * Bundles are concatenated scripts so only leading runs may be extracted without
+ * changing the order in which members execute. Each run becomes a segment shared
+ * by exactly the same set of bundles, so no bytes are duplicated between segments.
+ */
+class CommonChunkPlan {
+
+	static final String COMMON_DELIM = "#common";
+
+	/**
+	 * A run of members shared by several merge files
+	 */
+	public static class Segment {
+		private final String key;
+		private final int size;
+
+		Segment(String key, int size) {
+			this.key = key;
+			this.size = size;
+		}
+
+		/**
+		 * @return the path under which the segment is listed in the compaction map
+		 */
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * @return the number of members in the segment
+		 */
+		public int getSize() {
+			return size;
+		}
+	}
+
+	private static class Node {
+		public final Map<String, Node> children = new HashMap<String, Node>();
+		public String firstBundle;
+		public int bundles;
+	}
+
+	private final Node root = new Node();
+	private final int threshold;
+
+	/**
+	 * @param threshold the minimum number of bundles which must share a member
+	 */
+	public CommonChunkPlan(int threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Plans from the member lists of every merge file
+	 * @param settings
+	 * @param bundles the members listed by each merge file
+	 * @param threshold the minimum number of bundles which must share a member
+	 * @return
+	 */
+	public static CommonChunkPlan create(Settings settings, Map<String, List<String>> bundles, int threshold) {
+		CommonChunkPlan plan = new CommonChunkPlan(threshold);
+		for (String path : bundles.keySet()) {
+			List<String> members = new ArrayList<String>();
+			flatten(settings, bundles, path, members, new HashSet<String>());
+			plan.addBundle(path, members);
+		}
+		return plan;
+	}
+
+	/**
+	 * Mirrors the members which compaction will find, replacing nested merge files with their members
+	 */
+	private static void flatten(Settings settings, Map<String, List<String>> bundles, String path, List<String> members, Set<String> visiting) {
+		if (!visiting.add(path)) {
+			// cycles are reported when compacted
+			return;
+		}
+
+		// repeats within a single merge file are only added once
+		Set<String> listed = new HashSet<String>();
+		for (String member : bundles.get(path)) {
+			if (!listed.add(member)) {
+				continue;
+			}
+
+			if (bundles.containsKey(member)) {
+				flatten(settings, bundles, member, members, visiting);
+
+			} else if (settings.findSourceFile(member).exists()) {
+				members.add(member);
+			}
+		}
+		visiting.remove(path);
+	}
+
+	/**
+	 * @param path the merge file
+	 * @param members its flattened members in order
+	 */
+	public void addBundle(String path, List<String> members) {
+		Node node = root;
+		for (String member : members) {
+			Node child = node.children.get(member);
+			if (child == null) {
+				child = new Node();
+				node.children.put(member, child);
+			}
+			child.bundles++;
+			// keys must not depend upon the order files were found
+			if (child.firstBundle == null || path.compareTo(child.firstBundle) < 0) {
+				child.firstBundle = path;
+			}
+			node = child;
+		}
+	}
+
+	/**
+	 * @param members the flattened members of a merge file
+	 * @return the shared segments which lead the members, in order
+	 */
+	public List<Segment> getSegments(List<String> members) {
+		List<Segment> segments = new ArrayList<Segment>();
+		Node node = root;
+		int start = 0, end = 0;
+		for (; end<members.size(); end++) {
+			Node child = node.children.get(members.get(end));
+			if (child == null || child.bundles < threshold) {
+				break;
+			}
+
+			if (end > start && child.bundles != node.bundles) {
+				// fewer bundles share what follows
+				segments.add(new Segment(node.firstBundle+COMMON_DELIM+end, end-start));
+				start = end;
+			}
+			node = child;
+		}
+
+		if (end > start) {
+			segments.add(new Segment(node.firstBundle+COMMON_DELIM+end, end-start));
+		}
+		return segments;
+	}
+}
@@ -0,0 +1,203 @@
+package org.duelengine.merge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps compacted output between builds, keyed by the hashed output path and compactor release.
+ * Entries are only ever replaced atomically so the directory may be shared by
+ * concurrent builds on the same host. Least recently used entries are evicted
+ * once the cache grows past its size limit.
+ */
+class CompactionCache {
+
+	private static final Logger log = LoggerFactory.getLogger(CompactionCache.class);
+	private static final int BUFFER_SIZE = 4096;
+	private static final String TEMP_EXT = ".tmp";
+	private static final long MEGABYTE = 1024L*1024L;
+	private static final long ABANDONED_AGE = 24L*60L*60L*1000L;
+
+	// evicting below the limit leaves headroom for the next build
+	private static final double EVICTION_RATIO = 0.9;
+
+	private final File cacheDir;
+
+	public CompactionCache(File cacheDir) {
+		if (cacheDir == null) {
+			throw new NullPointerException("cacheDir");
+		}
+
+		this.cacheDir = cacheDir;
+	}
+
+	/**
+	 * Copies any cached output into target
+	 * @param key
+	 * @param target
+	 * @return true if the output was found
+	 * @throws IOException
+	 */
+	public boolean restore(String key, File target)
+			throws IOException {
+
+		File cached = getCacheFile(key);
+		if (!cached.isFile()) {
+			return false;
+		}
+
+		target.getParentFile().mkdirs();
+		try {
+			copy(cached, target);
+
+		} catch (FileNotFoundException ex) {
+			// evicted by another build
+			return false;
+		}
+
+		// mark as recently used
+		cached.setLastModified(System.currentTimeMillis());
+		return true;
+	}
+
+	/**
+	 * Adds compacted output to the cache
+	 * @param key
+	 * @param target
+	 * @throws IOException
+	 */
+	public void store(String key, File target)
+			throws IOException {
+
+		File cached = getCacheFile(key);
+		if (cached.isFile() || !target.isFile()) {
+			return;
+		}
+
+		File shard = cached.getParentFile();
+		shard.mkdirs();
+
+		// copy under a temporary name so concurrent readers never see partial output
+		File temp = File.createTempFile(key, TEMP_EXT, shard);
+		try {
+			copy(target, temp);
+			try {
+				Files.move(temp.toPath(), cached.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+			} catch (AtomicMoveNotSupportedException ex) {
+				if (!temp.renameTo(cached) && !cached.isFile()) {
+					throw new IOException("Unable to cache "+cached);
+				}
+			}
+
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Removes least recently used entries until the cache is under its limit
+	 * @param limit size limit in megabytes
+	 */
+	public void evict(int limit) {
+		if (limit < 1) {
+			return;
+		}
+
+		List<File> entries = new ArrayList<File>();
+		long size = 0L;
+		long abandoned = System.currentTimeMillis() - ABANDONED_AGE;
+		File[] shards = cacheDir.listFiles();
+		if (shards == null) {
+			return;
+		}
+		for (File shard : shards) {
+			File[] files = shard.isDirectory() ? shard.listFiles() : new File[] { shard };
+			if (files == null) {
+				continue;
+			}
+			for (File file : files) {
+				if (file.getName().endsWith(TEMP_EXT)) {
+					if (file.lastModified() < abandoned) {
+						// left behind by an interrupted build
+						file.delete();
+					}
+
+				} else if (file.isFile()) {
+					entries.add(file);
+					size += file.length();
+				}
+			}
+		}
+
+		long max = limit*MEGABYTE;
+		if (size <= max) {
+			return;
+		}
+
+		Collections.sort(entries, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return (diff < 0L) ? -1 : (diff > 0L) ? 1 : 0;
+			}
+		});
+
+		long goal = (long)(max*EVICTION_RATIO);
+		int evicted = 0;
+		for (File entry : entries) {
+			if (size <= goal) {
+				break;
+			}
+			long length = entry.length();
+			if (entry.delete()) {
+				size -= length;
+				evicted++;
+			}
+		}
+		log.info("Evicted "+evicted+" cache entries");
+	}
+
+	/**
+	 * Spreads entries across subdirectories named by the leading key characters
+	 */
+	private File getCacheFile(String key) {
+		return new File(new File(cacheDir, key.substring(0, 2)), key);
+	}
+
+	private static void copy(File source, File target)
+			throws IOException {
+
+		final byte[] buffer = new byte[BUFFER_SIZE];
+
+		FileInputStream inStream = new FileInputStream(source);
+		try {
+			FileOutputStream outStream = new FileOutputStream(target);
+			try {
+				int count;
+				while ((count = inStream.read(buffer)) > 0) {
+					outStream.write(buffer, 0, count);
+				}
+
+			} finally {
+				outStream.flush();
+				outStream.close();
+			}
+
+		} finally {
+			inStream.close();
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package org.duelengine.merge;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Presents a file-based {@link Compactor} as a {@link ResourceCompactor}.
+ * Such compactors read the source themselves, once to hash and again to compact.
+ */
+class CompactorAdapter implements ResourceCompactor {
+
+	private final Compactor compactor;
+
+	private CompactorAdapter(Compactor compactor) {
+		this.compactor = compactor;
+	}
+
+	/**
+	 * @param compactor
+	 * @return the compactor itself if it already accepts resources
+	 */
+	public static ResourceCompactor adapt(Compactor compactor) {
+		if (compactor instanceof ResourceCompactor) {
+			return (ResourceCompactor)compactor;
+		}
+		return new CompactorAdapter(compactor);
+	}
+
+	@Override
+	public String[] getSourceExtensions() {
+		return compactor.getSourceExtensions();
+	}
+
+	@Override
+	public String getTargetExtension(BuildManager manager, String path) {
+		return compactor.getTargetExtension(manager, path);
+	}
+
+	@Override
+	public void calcHash(BuildManager manager, MessageDigest hash, String path, File source)
+			throws IOException, NoSuchAlgorithmException {
+
+		compactor.calcHash(manager, hash, path, source);
+	}
+
+	@Override
+	public void calcHash(BuildManager manager, MessageDigest hash, Resource resource)
+			throws IOException, NoSuchAlgorithmException {
+
+		compactor.calcHash(manager, hash, resource.getPath(), resource.getFile());
+	}
+
+	@Override
+	public void compact(BuildManager manager, String path, File source, File target)
+			throws IOException {
+
+		compactor.compact(manager, path, source, target);
+	}
+
+	@Override
+	public void compact(BuildManager manager, Resource resource, File target)
+			throws IOException {
+
+		compactor.compact(manager, resource.getPath(), resource.getFile(), target);
+	}
+}
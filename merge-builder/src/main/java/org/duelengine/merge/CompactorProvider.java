@@ -0,0 +1,36 @@
+package org.duelengine.merge;
+
+/**
+ * Registers a {@link Compactor} by extension without creating it, so compactors which
+ * load large compilers cost nothing until the first matching file is found.
+ * Providers are listed in META-INF/services/org.duelengine.merge.CompactorProvider
+ * and later providers take precedence for any extension they share.
+ */
+public interface CompactorProvider {
+
+	/**
+	 * Gets the name by which the compactor may be disabled
+	 * @return
+	 */
+	String getName();
+
+	/**
+	 * Gets the extensions which the compactor will consume
+	 * @param settings
+	 * @return
+	 */
+	String[] getSourceExtensions(Settings settings);
+
+	/**
+	 * Determines if the compactor will be an {@link IsolatedCompactor}, without creating it
+	 * @return
+	 */
+	boolean isIsolated();
+
+	/**
+	 * Creates the compactor, at most once per build
+	 * @param settings
+	 * @return
+	 */
+	Compactor create(Settings settings);
+}
@@ -0,0 +1,269 @@
+package org.duelengine.merge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads and scans each stylesheet once per build, however many others import it.
+ * Entries are keyed by path and kept until the build clears them.
+ */
+class CssImportCache {
+
+	private static final String CHAR_ENCODING = "UTF-8";
+	private static final String LESS_EXT = ".less";
+
+	// LESS allows options, e.g., @import (reference) "foo";
+	private static final Pattern IMPORT_PATTERN = Pattern.compile(
+		"@import\\s+(\\([^)]*\\)\\s*)?(?:url\\(\\s*(['\"]?)([^'\")]*)\\2\\s*\\)|(['\"])([^'\"]*)\\4)\\s*([^;{}]*);");
+
+	/**
+	 * An @import statement
+	 */
+	public static class Import {
+		private final int start;
+		private final int end;
+		private final String path;
+		private final String media;
+		private final String options;
+
+		Import(int start, int end, String path, String media, String options) {
+			this.start = start;
+			this.end = end;
+			this.path = path;
+			this.media = media;
+			this.options = options;
+		}
+
+		/**
+		 * @return offset of the statement within the stylesheet
+		 */
+		public int getStart() {
+			return start;
+		}
+
+		/**
+		 * @return offset following the statement
+		 */
+		public int getEnd() {
+			return end;
+		}
+
+		/**
+		 * @return the resolved path, or null if not a local stylesheet
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * @return any media query, or an empty string
+		 */
+		public String getMedia() {
+			return media;
+		}
+
+		/**
+		 * @return any LESS import options, or null
+		 */
+		public String getOptions() {
+			return options;
+		}
+	}
+
+	/**
+	 * A scanned stylesheet
+	 */
+	public static class Entry {
+		private final String text;
+		private final byte[] digest;
+		private final List<Import> imports;
+
+		Entry(String text, byte[] digest, List<Import> imports) {
+			this.text = text;
+			this.digest = digest;
+			this.imports = imports;
+		}
+
+		public String getText() {
+			return text;
+		}
+
+		public byte[] getDigest() {
+			return digest;
+		}
+
+		public List<Import> getImports() {
+			return imports;
+		}
+	}
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * @param settings
+	 * @param path the stylesheet path
+	 * @return the scanned stylesheet, or null if it does not exist
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public Entry get(Settings settings, String path)
+			throws IOException, NoSuchAlgorithmException {
+
+		// the build clears every entry so whatever was read first is current
+		Entry entry = entries.get(path);
+		if (entry != null) {
+			return entry;
+		}
+
+		File source = settings.findSourceFile(path);
+		if (!source.isFile()) {
+			return null;
+		}
+
+		String text = read(source);
+		byte[] digest = MessageDigest.getInstance(settings.getHashAlgorithm()).digest(text.getBytes(CHAR_ENCODING));
+
+		entry = new Entry(text, digest, scanImports(path, text));
+		Entry prior = entries.putIfAbsent(path, entry);
+		return (prior != null) ? prior : entry;
+	}
+
+	/**
+	 * Releases every entry once the build is finished
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Adds the content of every stylesheet transitively imported by a stylesheet to its hash
+	 * @param settings
+	 * @param path
+	 * @param hash
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public void digestImports(Settings settings, String path, MessageDigest hash)
+			throws IOException, NoSuchAlgorithmException {
+
+		Entry entry = get(settings, path);
+		if (entry == null) {
+			return;
+		}
+
+		Set<String> visited = new HashSet<String>();
+		visited.add(path);
+		digestImports(settings, entry, hash, visited);
+	}
+
+	private void digestImports(Settings settings, Entry entry, MessageDigest hash, Set<String> visited)
+			throws IOException, NoSuchAlgorithmException {
+
+		for (Import statement : entry.imports) {
+			String child = statement.getPath();
+			if (child == null || !visited.add(child)) {
+				continue;
+			}
+
+			hash.update(child.getBytes(CHAR_ENCODING));
+			Entry imported = get(settings, child);
+			if (imported != null) {
+				hash.update(imported.digest);
+				digestImports(settings, imported, hash, visited);
+			}
+		}
+	}
+
+	private static List<Import> scanImports(String path, String text) {
+		// blank out comments, keeping offsets
+		char[] masked = text.toCharArray();
+		int comment = text.indexOf("/*");
+		while (comment >= 0) {
+			int end = text.indexOf("*/", comment+2);
+			end = (end < 0) ? masked.length : end+2;
+			for (int i=comment; i<end; i++) {
+				masked[i] = ' ';
+			}
+			comment = (end < masked.length) ? text.indexOf("/*", end) : -1;
+		}
+
+		List<Import> imports = null;
+		Matcher matcher = IMPORT_PATTERN.matcher(new String(masked));
+		while (matcher.find()) {
+			String spec = (matcher.group(3) != null) ? matcher.group(3).trim() : matcher.group(5).trim();
+
+			if (imports == null) {
+				imports = new ArrayList<Import>();
+			}
+			imports.add(new Import(
+				matcher.start(),
+				matcher.end(),
+				resolve(path, spec),
+				matcher.group(6).trim(),
+				(matcher.group(1) != null) ? matcher.group(1).trim() : null));
+		}
+
+		return (imports != null) ? imports : Collections.<Import>emptyList();
+	}
+
+	/**
+	 * @return the local path of the import, or null if remote
+	 */
+	private static String resolve(String path, String spec) {
+		if (spec.isEmpty() || spec.startsWith("//") || spec.indexOf(':') >= 0) {
+			return null;
+		}
+
+		String resolved;
+		try {
+			resolved = LinkInterceptorCssFilter.splitUrl(path, spec)[0];
+
+		} catch (IllegalArgumentException ex) {
+			return null;
+		}
+		if (!resolved.startsWith("/")) {
+			return null;
+		}
+
+		if (LESS_EXT.equalsIgnoreCase(BuildManager.getExtension(path)) &&
+			resolved.indexOf('.', resolved.lastIndexOf('/')+1) < 0) {
+			// LESS assumes its own extension
+			resolved += LESS_EXT;
+		}
+		return resolved;
+	}
+
+	private static String read(File source)
+			throws IOException {
+
+		StringBuilder buffer = new StringBuilder((int)source.length());
+		char[] chars = new char[4096];
+
+		Reader reader = new InputStreamReader(new FileInputStream(source), CHAR_ENCODING);
+		try {
+			int count;
+			while ((count = reader.read(chars)) > 0) {
+				buffer.append(chars, 0, count);
+			}
+
+		} finally {
+			reader.close();
+		}
+
+		return buffer.toString();
+	}
+}
@@ -0,0 +1,198 @@
+package org.duelengine.merge;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replaces local @import statements with the imported stylesheets, rebasing their
+ * relative URLs to root paths so they resolve as they did from the imported file.
+ * As @import must precede all rules, imports are only inlined when every import
+ * which follows can be too, and imported stylesheets only when fully flattened.
+ */
+class CssImportFlattener {
+
+	private static final Logger log = LoggerFactory.getLogger(CssImportFlattener.class);
+
+	private static final String CSS_EXT = ".css";
+	private static final String LESS_EXT = ".less";
+	private static final Pattern URL_PATTERN = Pattern.compile("url\\(\\s*(['\"]?)([^'\")]*)\\1\\s*\\)");
+	private static final Pattern CHARSET_PATTERN = Pattern.compile("^\\s*@charset\\s+[^;]*;");
+
+	private final Settings settings;
+	private final CssImportCache imports;
+	private final boolean isLess;
+	private final Set<String> included = new HashSet<String>();
+	private final Set<String> visiting = new HashSet<String>();
+
+	/**
+	 * @param settings
+	 * @param imports
+	 * @param path the stylesheet being compiled
+	 */
+	public CssImportFlattener(Settings settings, CssImportCache imports, String path) {
+		this.settings = settings;
+		this.imports = imports;
+		this.isLess = LESS_EXT.equalsIgnoreCase(BuildManager.getExtension(path));
+	}
+
+	/**
+	 * @param path the stylesheet being compiled
+	 * @param inlined receives the path of each stylesheet inlined
+	 * @return the flattened stylesheet, or null if nothing was inlined
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public String flatten(String path, Collection<String> inlined)
+			throws IOException, NoSuchAlgorithmException {
+
+		included.clear();
+		CssImportCache.Entry entry = imports.get(settings, path);
+		if (entry == null || entry.getImports().isEmpty()) {
+			return null;
+		}
+
+		visiting.add(path);
+		try {
+			int first = firstInlinable(entry);
+			if (first >= entry.getImports().size()) {
+				return null;
+			}
+			return inline(entry, first, inlined);
+
+		} finally {
+			visiting.remove(path);
+		}
+	}
+
+	/**
+	 * @return the index of the first import after which all can be inlined
+	 */
+	private int firstInlinable(CssImportCache.Entry entry)
+			throws IOException, NoSuchAlgorithmException {
+
+		List<CssImportCache.Import> statements = entry.getImports();
+		int first = statements.size();
+		while (first > 0 && canInline(statements.get(first-1))) {
+			first--;
+		}
+		return first;
+	}
+
+	private boolean canInline(CssImportCache.Import statement)
+			throws IOException, NoSuchAlgorithmException {
+
+		String child = statement.getPath();
+		if (child == null || statement.getOptions() != null || !statement.getMedia().isEmpty()) {
+			// remote, LESS options, or media queries
+			return false;
+		}
+
+		String ext = BuildManager.getExtension(child);
+		if (!CSS_EXT.equals(ext) && !(isLess && LESS_EXT.equals(ext))) {
+			return false;
+		}
+
+		if (visiting.contains(child)) {
+			log.warn("Cyclical CSS @import: "+child);
+			return false;
+		}
+
+		CssImportCache.Entry entry = imports.get(settings, child);
+		if (entry == null) {
+			log.warn("Missing CSS @import: "+child);
+			return false;
+		}
+
+		visiting.add(child);
+		try {
+			return firstInlinable(entry) == 0;
+
+		} finally {
+			visiting.remove(child);
+		}
+	}
+
+	private String inline(CssImportCache.Entry entry, int first, Collection<String> inlined)
+			throws IOException, NoSuchAlgorithmException {
+
+		String text = entry.getText();
+		List<CssImportCache.Import> statements = entry.getImports();
+		StringBuilder buffer = new StringBuilder(text.length());
+
+		int start = 0;
+		for (int i=first; i<statements.size(); i++) {
+			CssImportCache.Import statement = statements.get(i);
+			buffer.append(text, start, statement.getStart());
+			start = statement.getEnd();
+
+			String child = statement.getPath();
+			if (isLess && !included.add(child)) {
+				// LESS imports each file once
+				continue;
+			}
+
+			CssImportCache.Entry imported = imports.get(settings, child);
+			inlined.add(child);
+
+			visiting.add(child);
+			try {
+				String content = imported.getImports().isEmpty() ? imported.getText() : inline(imported, 0, inlined);
+				content = CHARSET_PATTERN.matcher(content).replaceFirst("");
+				buffer.append(rebase(child, content)).append('\n');
+
+			} finally {
+				visiting.remove(child);
+			}
+		}
+		buffer.append(text, start, text.length());
+
+		return buffer.toString();
+	}
+
+	/**
+	 * Makes relative URLs root-relative so they resolve the same from the importing stylesheet
+	 */
+	private static String rebase(String path, String content) {
+		Matcher matcher = URL_PATTERN.matcher(content);
+		StringBuffer buffer = null;
+		while (matcher.find()) {
+			String val = matcher.group(2).trim();
+			if (val.isEmpty() || val.charAt(0) == '/' || val.charAt(0) == '#' || val.indexOf(':') >= 0 || val.contains("@{")) {
+				// rooted, fragment, data/remote or interpolated
+				continue;
+			}
+
+			String[] parts;
+			try {
+				parts = LinkInterceptorCssFilter.splitUrl(path, val);
+
+			} catch (IllegalArgumentException ex) {
+				continue;
+			}
+			if (!parts[0].startsWith("/")) {
+				continue;
+			}
+
+			if (buffer == null) {
+				buffer = new StringBuffer(content.length());
+			}
+			String quote = matcher.group(1).isEmpty() ? "\"" : matcher.group(1);
+			matcher.appendReplacement(buffer, Matcher.quoteReplacement("url("+quote+parts[0]+parts[1]+quote+')'));
+		}
+
+		if (buffer == null) {
+			return content;
+		}
+		matcher.appendTail(buffer);
+		return buffer.toString();
+	}
+}
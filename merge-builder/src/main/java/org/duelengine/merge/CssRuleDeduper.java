@@ -0,0 +1,348 @@
+package org.duelengine.merge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Removes redundancy from concatenated, minified stylesheets without changing the cascade:
+ * a declaration is dropped when a later rule with the same selector repeats it exactly
+ * (so identical rules collapse to the last), then adjacent rules sharing a selector or
+ * a declaration block are combined. Differing values are never dropped as a later
+ * value may be a fallback which some browsers ignore. Each @media block is its own
+ * scope and other at-rules are left untouched.
+ */
+class CssRuleDeduper {
+
+	private static class Item {
+		// null for opaque at-rules and comments
+		public String selector;
+		public List<String> declarations;
+		public String media;
+		public List<Item> children;
+		public String raw;
+	}
+
+	private static final Set<String> SAFE_PSEUDOS = new HashSet<String>(Arrays.asList(
+		"link", "visited", "hover", "active", "focus", "first-child",
+		"before", "after", "first-line", "first-letter"));
+
+	private final String css;
+	private int index;
+
+	private CssRuleDeduper(String css) {
+		this.css = css;
+	}
+
+	/**
+	 * @param css minified stylesheet
+	 * @return the deduplicated stylesheet, or the original if it could not be parsed
+	 */
+	public static String dedupe(String css) {
+		List<Item> items;
+		try {
+			CssRuleDeduper parser = new CssRuleDeduper(css);
+			items = parser.parseBlock(false);
+
+		} catch (IllegalArgumentException ex) {
+			return css;
+		}
+
+		dedupe(items);
+		StringBuilder buffer = new StringBuilder(css.length());
+		write(buffer, items);
+		return buffer.toString();
+	}
+
+	private static void dedupe(List<Item> items) {
+		// walk backwards tracking which declarations each selector repeats later
+		Map<String, Set<String>> later = new HashMap<String, Set<String>>();
+		for (int i=items.size()-1; i>=0; i--) {
+			Item item = items.get(i);
+			if (item.children != null) {
+				dedupe(item.children);
+				continue;
+			}
+			if (item.selector == null) {
+				continue;
+			}
+
+			Set<String> seen = later.get(item.selector);
+			if (seen == null) {
+				seen = new HashSet<String>();
+				later.put(item.selector, seen);
+			}
+
+			// last occurrence wins, including within the block
+			List<String> kept = new ArrayList<String>(item.declarations.size());
+			for (int j=item.declarations.size()-1; j>=0; j--) {
+				String declaration = item.declarations.get(j);
+				if (seen.add(declaration)) {
+					kept.add(0, declaration);
+				}
+			}
+			item.declarations = kept;
+		}
+
+		Item previous = null;
+		for (Iterator<Item> it = items.iterator(); it.hasNext(); ) {
+			Item item = it.next();
+			if (item.selector != null && item.declarations.isEmpty()) {
+				it.remove();
+				continue;
+			}
+
+			if (previous != null && previous.selector != null && item.selector != null) {
+				if (previous.selector.equals(item.selector)) {
+					previous.declarations.addAll(item.declarations);
+					it.remove();
+					continue;
+				}
+
+				if (previous.declarations.equals(item.declarations) &&
+					isSafeToGroup(previous.selector) && isSafeToGroup(item.selector)) {
+					// an unrecognized selector would invalidate the whole list
+					previous.selector += ','+item.selector;
+					it.remove();
+					continue;
+				}
+			}
+			previous = item;
+		}
+	}
+
+	/**
+	 * Determines if every browser will recognize the selector, so grouping it cannot
+	 * invalidate the others: any pseudo-class or pseudo-element must be a CSS2 one
+	 * written with a single colon (e.g., not ":-moz-focusring", ":focus-visible" or "::selection")
+	 */
+	private static boolean isSafeToGroup(String selector) {
+		for (int i=0; i<selector.length(); i++) {
+			char ch = selector.charAt(i);
+			if (ch == '"' || ch == '\'') {
+				i = skipString(selector, i);
+				continue;
+			}
+			if (ch != ':') {
+				continue;
+			}
+
+			int end = i+1;
+			while (end < selector.length() && isNameChar(selector.charAt(end))) {
+				end++;
+			}
+			if (!SAFE_PSEUDOS.contains(selector.substring(i+1, end).toLowerCase())) {
+				return false;
+			}
+			i = end-1;
+		}
+		return true;
+	}
+
+	private static boolean isNameChar(char ch) {
+		return Character.isLetterOrDigit(ch) || ch == '-' || ch == '_';
+	}
+
+	private static void write(StringBuilder buffer, List<Item> items) {
+		for (Item item : items) {
+			if (item.children != null) {
+				buffer.append(item.media).append('{');
+				write(buffer, item.children);
+				buffer.append('}');
+
+			} else if (item.selector != null) {
+				buffer.append(item.selector).append('{');
+				for (int i=0; i<item.declarations.size(); i++) {
+					if (i > 0) {
+						buffer.append(';');
+					}
+					buffer.append(item.declarations.get(i));
+				}
+				buffer.append('}');
+
+			} else {
+				buffer.append(item.raw);
+			}
+		}
+	}
+
+	/**
+	 * @param nested true if within an @media block
+	 */
+	private List<Item> parseBlock(boolean nested) {
+		List<Item> items = new ArrayList<Item>();
+		int length = css.length();
+
+		while (true) {
+			int start = index;
+			while (index < length && Character.isWhitespace(css.charAt(index))) {
+				index++;
+			}
+			if (index >= length) {
+				if (nested) {
+					throw new IllegalArgumentException("Unclosed block");
+				}
+				if (index > start) {
+					items.add(raw(css.substring(start)));
+				}
+				return items;
+			}
+
+			char ch = css.charAt(index);
+			if (ch == '}') {
+				if (!nested) {
+					throw new IllegalArgumentException("Unbalanced block");
+				}
+				index++;
+				return items;
+			}
+
+			if (css.startsWith("/*", index)) {
+				int end = css.indexOf("*/", index+2);
+				if (end < 0) {
+					throw new IllegalArgumentException("Unclosed comment");
+				}
+				index = end+2;
+				items.add(raw(css.substring(start, index)));
+				continue;
+			}
+
+			int prelude = index;
+			int end = scan(index, ch == '@');
+			String head = css.substring(prelude, end).trim();
+			if (css.charAt(end) == ';') {
+				// at-rule without a block, e.g., @import
+				index = end+1;
+				items.add(raw(css.substring(start, index)));
+				continue;
+			}
+
+			if (ch == '@') {
+				if (head.regionMatches(true, 0, "@media", 0, 6)) {
+					index = end+1;
+					Item item = new Item();
+					item.media = head;
+					item.children = parseBlock(true);
+					items.add(item);
+
+				} else {
+					// e.g., @font-face and @keyframes are kept as is
+					index = skipBlock(end+1);
+					items.add(raw(css.substring(start, index)));
+				}
+				continue;
+			}
+
+			int close = skipBlock(end+1);
+			Item item = new Item();
+			item.selector = head;
+			item.declarations = splitDeclarations(css.substring(end+1, close-1));
+			items.add(item);
+			index = close;
+		}
+	}
+
+	private static Item raw(String text) {
+		Item item = new Item();
+		item.raw = text;
+		return item;
+	}
+
+	/**
+	 * @return the offset of the next '{' (or ';' for at-rules) outside strings and parentheses
+	 */
+	private int scan(int start, boolean atRule) {
+		int depth = 0;
+		for (int i=start; i<css.length(); i++) {
+			char ch = css.charAt(i);
+			if (ch == '"' || ch == '\'') {
+				i = skipString(css, i);
+			} else if (ch == '(') {
+				depth++;
+			} else if (ch == ')') {
+				depth--;
+			} else if (depth == 0 && (ch == '{' || (atRule && ch == ';'))) {
+				return i;
+			} else if (depth == 0 && (ch == '}' || ch == ';')) {
+				throw new IllegalArgumentException("Unexpected "+ch);
+			}
+		}
+		throw new IllegalArgumentException("Unterminated rule");
+	}
+
+	/**
+	 * @return the offset following the '}' which closes the block
+	 */
+	private int skipBlock(int start) {
+		int depth = 1;
+		for (int i=start; i<css.length(); i++) {
+			char ch = css.charAt(i);
+			if (ch == '"' || ch == '\'') {
+				i = skipString(css, i);
+			} else if (ch == '/' && css.startsWith("/*", i)) {
+				int end = css.indexOf("*/", i+2);
+				if (end < 0) {
+					break;
+				}
+				i = end+1;
+			} else if (ch == '{') {
+				depth++;
+			} else if (ch == '}' && --depth == 0) {
+				return i+1;
+			}
+		}
+		throw new IllegalArgumentException("Unclosed block");
+	}
+
+	private static int skipString(String text, int start) {
+		char quote = text.charAt(start);
+		for (int i=start+1; i<text.length(); i++) {
+			char ch = text.charAt(i);
+			if (ch == '\\') {
+				i++;
+			} else if (ch == quote) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Unterminated string");
+	}
+
+	/**
+	 * Splits a declaration block on semicolons outside strings and parentheses
+	 */
+	private static List<String> splitDeclarations(String block) {
+		List<String> declarations = new ArrayList<String>();
+		int depth = 0, start = 0;
+		for (int i=0; i<block.length(); i++) {
+			char ch = block.charAt(i);
+			if (ch == '"' || ch == '\'') {
+				i = skipString(block, i);
+			} else if (ch == '(') {
+				depth++;
+			} else if (ch == ')') {
+				depth--;
+			} else if (ch == ';' && depth == 0) {
+				add(declarations, block.substring(start, i));
+				start = i+1;
+			} else if (ch == '{' || (ch == '/' && block.startsWith("/*", i))) {
+				// nested rules or comments are not expected from the compiler
+				throw new IllegalArgumentException("Unexpected block content");
+			}
+		}
+		add(declarations, block.substring(start));
+
+		return declarations;
+	}
+
+	private static void add(List<String> declarations, String declaration) {
+		declaration = declaration.trim();
+		if (!declaration.isEmpty()) {
+			declarations.add(declaration);
+		}
+	}
+}
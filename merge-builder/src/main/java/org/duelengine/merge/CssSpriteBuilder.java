@@ -0,0 +1,237 @@
+package org.duelengine.merge;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Packs the small non-repeating backgrounds of a compacted stylesheet into sprite sheets.
+ * Images are laid out diagonally, each below and to the left of the previous,
+ * so elements larger than their icon never reveal a neighbor.
+ */
+class CssSpriteBuilder {
+
+	private static final Logger log = LoggerFactory.getLogger(CssSpriteBuilder.class);
+
+	private static final String PNG_EXT = ".png";
+	private static final String GIF_EXT = ".gif";
+	private static final String SPRITE_SUFFIX = ".sprite";
+	private static final int MAX_SPRITE_SIZE = 2048;
+
+	// only declarations where the position is implicitly the top-left corner
+	private static final Pattern BACKGROUND = Pattern.compile(
+		"background:\\s*(?:url\\(\\s*(['\"]?)([^'\")]+)\\1\\s*\\)\\s+no-repeat|no-repeat\\s+url\\(\\s*(['\"]?)([^'\")]+)\\3\\s*\\))(?=\\s*(?:!important\\s*)?[;}])");
+
+	// any other rule could shift or scale a sprited element's background
+	private static final Pattern POSITIONING = Pattern.compile(
+		"background-(?:position|size)(?:-[xy])?\\s*:", Pattern.CASE_INSENSITIVE);
+
+	private static class Placement {
+		public final String spriteFile;
+		public final int x;
+		public final int y;
+
+		public Placement(String spriteFile, int x, int y) {
+			this.spriteFile = spriteFile;
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	/**
+	 * Determines if a linked image is small enough to be added to a sprite
+	 * @param manager
+	 * @param path the image path
+	 * @return
+	 */
+	public static boolean isCandidate(BuildManager manager, String path) {
+		int limit = manager.getSettings().getSpriteLimit();
+		String ext = BuildManager.getExtension(path);
+		if (limit < 1 || !(PNG_EXT.equals(ext) || GIF_EXT.equals(ext)) || manager.getProcessedPath(path) == null) {
+			return false;
+		}
+
+		File target = manager.getTargetFile(path);
+		return target.isFile() && target.length() <= limit;
+	}
+
+	/**
+	 * Rewrites matching backgrounds of a compacted stylesheet to use sprites.
+	 * Stylesheets which set background-position or background-size anywhere are left alone
+	 * as such a rule (e.g., a :hover shift or a retina size) would override the sprite offset.
+	 * @param manager
+	 * @param path the stylesheet path
+	 * @param css the compacted stylesheet
+	 * @return the rewritten stylesheet
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static String build(BuildManager manager, String path, String css)
+			throws IOException, NoSuchAlgorithmException {
+
+		if (POSITIONING.matcher(css).find()) {
+			log.info("CSS sprites: {} sets background positions or sizes (skipped)", path);
+			return css;
+		}
+
+		// compacted URLs are the relative hashed paths of the linked images
+		Settings settings = manager.getSettings();
+		Map<String, String> links = new HashMap<String, String>();
+		for (String child : manager.getChildLinks(path)) {
+			String hashPath = manager.getProcessedPath(child);
+			if (hashPath != null) {
+				links.put(settings.getRelativeHashPath(hashPath), child);
+			}
+		}
+
+		Map<String, BufferedImage> images = new LinkedHashMap<String, BufferedImage>();
+		Matcher matcher = BACKGROUND.matcher(css);
+		while (matcher.find()) {
+			String file = getUrl(matcher);
+			String child = links.get(file);
+			if (child == null || images.containsKey(file) || !isCandidate(manager, child)) {
+				continue;
+			}
+
+			BufferedImage image = ImageIO.read(manager.getTargetFile(child));
+			if (image != null && image.getWidth() < MAX_SPRITE_SIZE && image.getHeight() < MAX_SPRITE_SIZE) {
+				images.put(file, image);
+			}
+		}
+
+		if (images.size() < 2) {
+			// nothing gained
+			return css;
+		}
+
+		Map<String, Placement> placements = pack(manager, path, images);
+
+		StringBuffer output = new StringBuffer(css.length());
+		matcher.reset();
+		while (matcher.find()) {
+			Placement placement = placements.get(getUrl(matcher));
+			if (placement == null) {
+				continue;
+			}
+
+			matcher.appendReplacement(output, "background:url("+placement.spriteFile+") no-repeat "+
+				toOffset(placement.x)+' '+toOffset(placement.y));
+		}
+		matcher.appendTail(output);
+		String result = output.toString();
+
+		for (String file : placements.keySet()) {
+			if (!result.contains(file)) {
+				// no longer requested by this stylesheet
+				manager.removeChildLink(path, links.get(file));
+			}
+		}
+
+		log.info("CSS sprites: {} packed {} images", path, placements.size());
+		return result;
+	}
+
+	/**
+	 * Lays out the images, starting another sprite whenever one would grow too large
+	 */
+	private static Map<String, Placement> pack(BuildManager manager, String path, Map<String, BufferedImage> images)
+			throws IOException, NoSuchAlgorithmException {
+
+		Map<String, Placement> placements = new HashMap<String, Placement>();
+
+		String base = path.substring(0, path.length()-BuildManager.getExtension(path).length())+SPRITE_SUFFIX;
+		List<String> group = new ArrayList<String>();
+		int width = 0, height = 0, count = 0;
+
+		for (String file : images.keySet()) {
+			BufferedImage image = images.get(file);
+			if (!group.isEmpty() &&
+				(width+image.getWidth() > MAX_SPRITE_SIZE || height+image.getHeight() > MAX_SPRITE_SIZE)) {
+
+				count++;
+				writeSprite(manager, path, (count > 1) ? base+'-'+count : base, group, images, width, height, placements);
+				group.clear();
+				width = height = 0;
+			}
+
+			group.add(file);
+			width += image.getWidth();
+			height += image.getHeight();
+		}
+
+		count++;
+		writeSprite(manager, path, (count > 1) ? base+'-'+count : base, group, images, width, height, placements);
+
+		return placements;
+	}
+
+	private static void writeSprite(BuildManager manager, String path, String spritePath, List<String> group,
+			Map<String, BufferedImage> images, int width, int height, Map<String, Placement> placements)
+			throws IOException, NoSuchAlgorithmException {
+
+		BufferedImage sprite = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		List<int[]> offsets = new ArrayList<int[]>(group.size());
+
+		Graphics2D graphics = sprite.createGraphics();
+		try {
+			int x = width, y = 0;
+			for (String file : group) {
+				BufferedImage image = images.get(file);
+				x -= image.getWidth();
+				graphics.drawImage(image, x, y, null);
+				offsets.add(new int[] { x, y });
+				y += image.getHeight();
+			}
+
+		} finally {
+			graphics.dispose();
+		}
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		ImageIO.write(sprite, "png", buffer);
+		byte[] png = buffer.toByteArray();
+		try {
+			byte[] compacted = ImageCompactor.compactPNG(png);
+			if (compacted != null && compacted.length < png.length) {
+				png = compacted;
+			}
+
+		} catch (DataFormatException ex) {
+			log.warn("Unable to compact sprite: "+spritePath);
+		}
+
+		spritePath += PNG_EXT;
+		String hashPath = manager.writeGeneratedResource(spritePath, png, PNG_EXT);
+		manager.addChildLink(path, spritePath);
+
+		String spriteFile = manager.getSettings().getRelativeHashPath(hashPath);
+		for (int i=0; i<group.size(); i++) {
+			int[] offset = offsets.get(i);
+			placements.put(group.get(i), new Placement(spriteFile, offset[0], offset[1]));
+		}
+	}
+
+	private static String getUrl(Matcher matcher) {
+		return (matcher.group(2) != null) ? matcher.group(2).trim() : matcher.group(4).trim();
+	}
+
+	private static String toOffset(int value) {
+		return (value == 0) ? "0" : "-"+value+"px";
+	}
+}
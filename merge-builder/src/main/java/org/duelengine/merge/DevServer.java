@@ -0,0 +1,320 @@
+package org.duelengine.merge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the build output for local testing, caching hashed CDN paths as a production CDN would.
+ * Sources modified since the last build trigger an incremental rebuild on the next request.
+ */
+class DevServer implements HttpHandler {
+
+	private static final Logger log = LoggerFactory.getLogger(DevServer.class);
+
+	private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+	private static final String REVALIDATE = "no-cache";
+	private static final String DEFAULT_TYPE = "application/octet-stream";
+	private static final String GZIP_EXT = ".gz";
+	private static final long CHECK_INTERVAL = 1000L;
+
+	private static final String TEMP_EXT = ".tmp";
+
+	private final Settings settings;
+	private final InetAddress address;
+	private final int port;
+	private HttpServer server;
+	private long lastBuild;
+	private long lastCheck;
+
+	/**
+	 * Serves only to the local machine
+	 * @param settings build settings, which are assumed to have just been built
+	 * @param port
+	 */
+	public DevServer(Settings settings, int port) {
+		this(settings, null, port);
+	}
+
+	/**
+	 * @param settings build settings, which are assumed to have just been built
+	 * @param address interface to listen on, or null for loopback only.
+	 * Any other address exposes the whole webapp tree, including WEB-INF.
+	 * @param port
+	 */
+	public DevServer(Settings settings, InetAddress address, int port) {
+		if (settings == null) {
+			throw new NullPointerException("settings");
+		}
+
+		this.settings = settings;
+		this.address = (address != null) ? address : InetAddress.getLoopbackAddress();
+		this.port = port;
+		this.lastBuild = System.currentTimeMillis();
+	}
+
+	public void start()
+			throws IOException {
+
+		server = HttpServer.create(new InetSocketAddress(address, port), 0);
+		server.createContext("/", this);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+
+		if (!address.isLoopbackAddress()) {
+			log.warn("Serving the webapp tree, including WEB-INF, beyond the local machine");
+		}
+		log.info("Serving "+settings.getTargetDir()+" at http://"+address.getHostAddress()+':'+port+"/");
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+
+	@Override
+	public void handle(HttpExchange exchange)
+			throws IOException {
+
+		try {
+			String method = exchange.getRequestMethod();
+			if (!"GET".equals(method) && !"HEAD".equals(method)) {
+				sendStatus(exchange, 405);
+				return;
+			}
+
+			rebuildIfModified();
+
+			String path = new URI(exchange.getRequestURI().getRawPath()).getPath();
+			if (path == null || path.contains("..")) {
+				sendStatus(exchange, 403);
+				return;
+			}
+
+			File file = settings.findSourceFile(path);
+			if (!file.isFile()) {
+				sendStatus(exchange, 404);
+				return;
+			}
+
+			Headers request = exchange.getRequestHeaders();
+			Headers response = exchange.getResponseHeaders();
+			String type = MimeTypes.get(path);
+			response.set("Content-Type", (type != null) ? type : DEFAULT_TYPE);
+			response.set("Vary", "Accept-Encoding");
+
+			// negotiate any precompressed sibling
+			String encoding = request.getFirst("Accept-Encoding");
+			File gzipped = new File(file.getPath()+GZIP_EXT);
+			String variant = "";
+			if (encoding != null && encoding.contains("gzip") && gzipped.isFile()) {
+				response.set("Content-Encoding", "gzip");
+				variant = "-gzip";
+			}
+
+			String etag;
+			if (path.startsWith(settings.getCDNRoot())) {
+				// file names are content hashes
+				String name = file.getName();
+				int dot = name.indexOf('.');
+				etag = '"'+((dot > 0) ? name.substring(0, dot) : name)+variant+'"';
+				response.set("Cache-Control", IMMUTABLE);
+
+			} else {
+				etag = '"'+Long.toHexString(file.lastModified())+'-'+Long.toHexString(file.length())+variant+'"';
+				response.set("Cache-Control", REVALIDATE);
+				response.set("Last-Modified", formatDate(file.lastModified()));
+			}
+			response.set("ETag", etag);
+
+			if (etag.equals(request.getFirst("If-None-Match"))) {
+				exchange.sendResponseHeaders(304, -1);
+				return;
+			}
+
+			if (!variant.isEmpty()) {
+				file = gzipped;
+			}
+
+			if ("HEAD".equals(method)) {
+				response.set("Content-Length", Long.toString(file.length()));
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+
+			exchange.sendResponseHeaders(200, file.length());
+			sendFile(file, exchange.getResponseBody());
+
+		} catch (Exception ex) {
+			log.error(ex.getMessage(), ex);
+			sendStatus(exchange, 500);
+
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Incrementally rebuilds when sources have been modified since the last build.
+	 * Build output may share the source tree so it is never treated as a change.
+	 */
+	private synchronized void rebuildIfModified()
+			throws IOException, NoSuchAlgorithmException {
+
+		long now = System.currentTimeMillis();
+		if (now - lastCheck < CHECK_INTERVAL) {
+			return;
+		}
+		lastCheck = now;
+
+		Set<File> outputs = getOutputFiles();
+		List<File> changes = new ArrayList<File>();
+		long newest = lastBuild;
+		Queue<File> folders = new LinkedList<File>();
+		folders.add(settings.getSourceDir());
+		while (!folders.isEmpty()) {
+			File[] files = folders.poll().listFiles();
+			if (files == null) {
+				continue;
+			}
+			for (File file : files) {
+				if (isOutput(outputs, file)) {
+					continue;
+				}
+				if (file.isDirectory()) {
+					folders.add(file);
+					continue;
+				}
+
+				long modified = file.lastModified();
+				if (modified > lastBuild) {
+					changes.add(file);
+					newest = Math.max(newest, modified);
+				}
+			}
+		}
+
+		if (changes.isEmpty()) {
+			return;
+		}
+
+		log.info("Rebuilding for "+changes.size()+" modified files");
+		// sources modified during the build are newer still so are found by the next check
+		lastBuild = newest;
+		new BuildManager(settings).execute(changes);
+	}
+
+	/**
+	 * Lists everything the build writes which may sit within the source tree
+	 * @return canonical files
+	 * @throws IOException
+	 */
+	private Set<File> getOutputFiles()
+			throws IOException {
+
+		Set<File> outputs = new HashSet<File>();
+		outputs.add(settings.getCDNDir().getCanonicalFile());
+		outputs.add(settings.getCDNMapFile().getCanonicalFile());
+		outputs.add(settings.getCDNLinksFile().getCanonicalFile());
+		outputs.add(settings.getCDNIntegrityFile().getCanonicalFile());
+		outputs.add(settings.getDiffReportFile().getCanonicalFile());
+		if (settings.getArchiveFile() != null) {
+			outputs.add(settings.getArchiveFile().getCanonicalFile());
+		}
+
+		File targetDir = settings.getTargetDir().getCanonicalFile();
+		if (!targetDir.equals(settings.getSourceDir().getCanonicalFile())) {
+			outputs.add(targetDir);
+		}
+		return outputs;
+	}
+
+	/**
+	 * @param outputs canonical output files
+	 * @param file
+	 * @return true if the file is output or the temporary sibling of output
+	 * @throws IOException
+	 */
+	private static boolean isOutput(Set<File> outputs, File file)
+			throws IOException {
+
+		File canonical = file.getCanonicalFile();
+		if (outputs.contains(canonical)) {
+			return true;
+		}
+
+		String name = canonical.getName();
+		if (name.endsWith(TEMP_EXT)) {
+			for (File output : outputs) {
+				if (name.startsWith(output.getName()) && canonical.getParentFile().equals(output.getParentFile())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Transfers the file through channels rather than copying through a heap buffer
+	 */
+	private static void sendFile(File file, OutputStream output)
+			throws IOException {
+
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			WritableByteChannel target = Channels.newChannel(output);
+			long position = 0L, size = channel.size();
+			while (position < size) {
+				position += channel.transferTo(position, size-position, target);
+			}
+
+		} finally {
+			channel.close();
+			output.close();
+		}
+	}
+
+	private static void sendStatus(HttpExchange exchange, int status) {
+		try {
+			exchange.sendResponseHeaders(status, -1);
+
+		} catch (IOException ex) {
+			// headers may already have been sent
+		}
+	}
+
+	private static String formatDate(long time) {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(time));
+	}
+}
@@ -0,0 +1,205 @@
+package org.duelengine.merge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the compaction map and output of a build against a previous baseline,
+ * reporting changed entries along with their raw and gzipped size deltas
+ */
+class DiffReport {
+
+	private static final Logger log = LoggerFactory.getLogger(DiffReport.class);
+	private static final int BUFFER_SIZE = 4096;
+	private static final String GZIP_EXT = ".gz";
+	private static final String NEWLINE = System.getProperty("line.separator");
+	private static final String CHAR_ENCODING = "UTF-8";
+
+	private final Settings settings;
+	private final Properties baseline;
+
+	/**
+	 * Reads the baseline map, which must happen before the build overwrites it
+	 * @param settings
+	 * @throws IOException
+	 */
+	public DiffReport(Settings settings)
+			throws IOException {
+
+		this.settings = settings;
+		this.baseline = loadMap(settings.getBaselineMapFile());
+	}
+
+	/**
+	 * Writes the report for the map just built and enforces any budgets
+	 * @throws IOException
+	 * @throws BudgetExceededException if output grew past a budget
+	 */
+	public void write()
+			throws IOException {
+
+		Properties current = loadMap(settings.getCDNMapFile());
+		String cdnRoot = settings.getCDNRoot();
+
+		TreeSet<String> paths = new TreeSet<String>(current.stringPropertyNames());
+		paths.addAll(baseline.stringPropertyNames());
+
+		StringBuilder report = new StringBuilder();
+		List<String> violations = new ArrayList<String>();
+		long totalRaw = 0L, totalGzip = 0L;
+		int changed = 0;
+
+		for (String path : paths) {
+			if (path.startsWith(cdnRoot)) {
+				// debug placeholders follow their merge files
+				continue;
+			}
+
+			String before = baseline.getProperty(path);
+			String after = current.getProperty(path);
+			if (after != null && after.equals(before)) {
+				continue;
+			}
+			changed++;
+
+			File beforeFile = (before != null) ? new File(settings.getBaselineDir(), before) : null;
+			File afterFile = (after != null) ? settings.getTargetFile(after) : null;
+			long rawDelta = sizeOf(afterFile) - sizeOf(beforeFile);
+			long gzipDelta = gzipSizeOf(afterFile) - gzipSizeOf(beforeFile);
+			totalRaw += rawDelta;
+			totalGzip += gzipDelta;
+
+			char change = (before == null) ? '+' : (after == null) ? '-' : '~';
+			report
+				.append(change).append(' ').append(path)
+				.append(' ').append(before != null ? before : "")
+				.append(" => ").append(after != null ? after : "")
+				.append(" (").append(signed(rawDelta)).append(" bytes, ")
+				.append(signed(gzipDelta)).append(" gzipped)").append(NEWLINE);
+
+			int budget = settings.getSizeBudget();
+			if (budget > 0 && gzipDelta > budget) {
+				violations.add(path+" grew by "+gzipDelta+" gzipped bytes");
+			}
+		}
+
+		report
+			.append("# ").append(changed).append(" changed, ")
+			.append(signed(totalRaw)).append(" bytes, ")
+			.append(signed(totalGzip)).append(" gzipped").append(NEWLINE);
+
+		int totalBudget = settings.getTotalSizeBudget();
+		if (totalBudget > 0 && totalGzip > totalBudget) {
+			violations.add("output grew by "+totalGzip+" gzipped bytes in total");
+		}
+
+		File reportFile = settings.getDiffReportFile();
+		reportFile.getParentFile().mkdirs();
+		FileWriter writer = new FileWriter(reportFile, false);
+		try {
+			writer.append(report);
+
+		} finally {
+			writer.flush();
+			writer.close();
+		}
+		log.info("Build diff: "+changed+" changed, "+signed(totalRaw)+" bytes, "+signed(totalGzip)+" gzipped ("+reportFile+")");
+
+		if (!violations.isEmpty()) {
+			for (String violation : violations) {
+				log.error("Size budget exceeded: "+violation);
+			}
+			throw new BudgetExceededException("Size budget exceeded: "+violations.get(0)+
+				((violations.size() > 1) ? " (and "+(violations.size()-1)+" more)" : ""));
+		}
+	}
+
+	private static Properties loadMap(File mapFile)
+			throws IOException {
+
+		Properties map = new Properties();
+		if (mapFile == null || !mapFile.isFile()) {
+			return map;
+		}
+
+		Reader reader = new InputStreamReader(new FileInputStream(mapFile), CHAR_ENCODING);
+		try {
+			map.load(reader);
+
+		} finally {
+			reader.close();
+		}
+		return map;
+	}
+
+	private static long sizeOf(File file) {
+		return (file != null && file.isFile()) ? file.length() : 0L;
+	}
+
+	/**
+	 * Uses the precompressed sibling when present, otherwise measures maximum compression
+	 */
+	private static long gzipSizeOf(File file)
+			throws IOException {
+
+		if (file == null || !file.isFile()) {
+			return 0L;
+		}
+
+		File gzipped = new File(file.getPath()+GZIP_EXT);
+		if (gzipped.isFile()) {
+			return gzipped.length();
+		}
+
+		final long[] count = { 0L };
+		OutputStream counter = new OutputStream() {
+			@Override
+			public void write(int b) {
+				count[0]++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				count[0] += len;
+			}
+		};
+
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		InputStream inStream = new FileInputStream(file);
+		try {
+			GZIPOutputStream outStream = new GZIPOutputStream(counter) {
+				{
+					def.setLevel(Deflater.BEST_COMPRESSION);
+				}
+			};
+			int read;
+			while ((read = inStream.read(buffer)) > 0) {
+				outStream.write(buffer, 0, read);
+			}
+			outStream.close();
+
+		} finally {
+			inStream.close();
+		}
+		return count[0];
+	}
+
+	private static String signed(long value) {
+		return (value > 0L) ? "+"+value : Long.toString(value);
+	}
+}
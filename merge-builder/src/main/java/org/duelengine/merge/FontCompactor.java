@@ -0,0 +1,336 @@
+package org.duelengine.merge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shrinks TrueType/OpenType and WOFF fonts by dropping signature, printer and editor tables
+ * which nothing reads once a font is served, along with any WOFF metadata and private data blocks.
+ * Glyphs are left intact. Other font formats are copied unmodified.
+ */
+class FontCompactor extends NullCompactor {
+
+	private static final Logger log = LoggerFactory.getLogger(FontCompactor.class);
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private static final String WOFF_EXT = ".woff";
+	private static final String[] SUPPORTED_EXTS = { ".ttf", ".otf", WOFF_EXT };
+
+	// signature, printer, linear threshold and editor data; shaping, bitmap and Graphite
+	// tables (e.g., BASE, JSTF, EBDT, Silf) can affect rendering so are always kept
+	private static final Set<String> UNUSED_TABLES = new HashSet<String>(Arrays.asList(
+		"DSIG", "PCLT", "LTSH", "FFTM"));
+
+	private static final long CHECKSUM_MAGIC = 0xB1B0AFBAL;
+
+	/**
+	 * Registers the supported font types among the configured CDN file extensions
+	 */
+	public static class Provider implements CompactorProvider {
+
+		@Override
+		public String getName() {
+			return "font";
+		}
+
+		@Override
+		public String[] getSourceExtensions(Settings settings) {
+			return filterSupported(settings.getExtensions());
+		}
+
+		@Override
+		public boolean isIsolated() {
+			return true;
+		}
+
+		@Override
+		public Compactor create(Settings settings) {
+			return new FontCompactor(settings.getExtensions());
+		}
+	}
+
+	/**
+	 * @param extensions the configured CDN file extensions, only supported font types are registered
+	 */
+	public FontCompactor(String... extensions) {
+		super(filterSupported(extensions));
+	}
+
+	private static String[] filterSupported(String... extensions) {
+		List<String> supported = new ArrayList<String>();
+		if (extensions != null) {
+			for (String ext : extensions) {
+				for (String font : SUPPORTED_EXTS) {
+					if (font.equalsIgnoreCase(ext)) {
+						supported.add(ext);
+						break;
+					}
+				}
+			}
+		}
+		return supported.toArray(new String[supported.size()]);
+	}
+
+	@Override
+	public void compact(BuildManager manager, Resource resource, File target)
+			throws IOException {
+
+		String path = resource.getPath();
+		byte[] original = resource.getBytes();
+		byte[] output;
+
+		try {
+			if (WOFF_EXT.equalsIgnoreCase(BuildManager.getExtension(path))) {
+				output = compactWOFF(original);
+			} else {
+				output = compactSFNT(original);
+			}
+
+		} catch (IndexOutOfBoundsException ex) {
+			log.warn("Malformed font (copying original): "+path);
+			output = null;
+
+		} catch (IllegalArgumentException ex) {
+			log.warn("Malformed font (copying original): "+path);
+			output = null;
+		}
+
+		if (output == null || output.length >= original.length) {
+			output = original;
+
+		} else {
+			log.info("Font {}: {} => {} bytes", path, original.length, output.length);
+		}
+
+		// ensure parent path exists
+		target.getParentFile().mkdirs();
+
+		FileOutputStream stream = new FileOutputStream(target);
+		try {
+			stream.write(output);
+
+		} finally {
+			stream.flush();
+			stream.close();
+		}
+	}
+
+	/**
+	 * Rebuilds a TrueType/OpenType font without the unused tables
+	 * @param font
+	 * @return null if the font should be left as is
+	 */
+	static byte[] compactSFNT(byte[] font) {
+		if (font.length < 12 || "ttcf".equals(new String(font, 0, 4, ASCII))) {
+			// collections share tables between fonts
+			return null;
+		}
+
+		int numTables = readUShort(font, 4);
+		TreeMap<String, byte[]> tables = new TreeMap<String, byte[]>();
+		for (int i=0; i<numTables; i++) {
+			int record = 12 + i*16;
+			String tag = new String(font, record, 4, ASCII);
+			int offset = readInt(font, record+8);
+			int length = readInt(font, record+12);
+			if (!isInRange(font, offset, length)) {
+				// corrupt directory
+				return null;
+			}
+			if (!UNUSED_TABLES.contains(tag)) {
+				tables.put(tag, Arrays.copyOfRange(font, offset, offset+length));
+			}
+		}
+
+		if (tables.size() == numTables) {
+			return null;
+		}
+
+		byte[] head = tables.get("head");
+		if (head != null && head.length >= 12) {
+			// recalculated once the whole font is written
+			writeInt(head, 8, 0);
+		}
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream(font.length);
+		writeDirectoryHeader(output, font, tables.size());
+
+		int offset = 12 + tables.size()*16;
+		for (String tag : tables.keySet()) {
+			byte[] table = tables.get(tag);
+			output.write(tag.getBytes(ASCII), 0, 4);
+			writeInt(output, (int)checksum(table, 0, table.length));
+			writeInt(output, offset);
+			writeInt(output, table.length);
+			offset += align4(table.length);
+		}
+
+		for (byte[] table : tables.values()) {
+			output.write(table, 0, table.length);
+			writePadding(output, table.length);
+		}
+
+		byte[] result = output.toByteArray();
+		if (head != null && head.length >= 12) {
+			int headOffset = readInt(result, 12 + 16*tables.headMap("head").size() + 8);
+			long adjustment = (CHECKSUM_MAGIC - checksum(result, 0, result.length)) & 0xFFFFFFFFL;
+			writeInt(result, headOffset+8, (int)adjustment);
+		}
+		return result;
+	}
+
+	/**
+	 * Rebuilds a WOFF font without the unused tables, metadata or private data.
+	 * Tables stay compressed as they are.
+	 * @param woff
+	 * @return null if the font should be left as is
+	 */
+	static byte[] compactWOFF(byte[] woff) {
+		if (woff.length < 44 || !"wOFF".equals(new String(woff, 0, 4, ASCII))) {
+			return null;
+		}
+
+		int numTables = readUShort(woff, 12);
+		boolean hasExtraData = readInt(woff, 24) != 0 || readInt(woff, 36) != 0;
+
+		TreeMap<String, int[]> tables = new TreeMap<String, int[]>();
+		for (int i=0; i<numTables; i++) {
+			int entry = 44 + i*20;
+			String tag = new String(woff, entry, 4, ASCII);
+			if (!isInRange(woff, readInt(woff, entry+4), readInt(woff, entry+8))) {
+				// corrupt directory
+				return null;
+			}
+			if (!UNUSED_TABLES.contains(tag)) {
+				// offset, compLength, origLength, origChecksum
+				tables.put(tag, new int[] {
+					readInt(woff, entry+4),
+					readInt(woff, entry+8),
+					readInt(woff, entry+12),
+					readInt(woff, entry+16)
+				});
+			}
+		}
+
+		if (tables.size() == numTables && !hasExtraData) {
+			return null;
+		}
+
+		int offset = 44 + tables.size()*20;
+		long sfntSize = 12 + tables.size()*16;
+		for (int[] table : tables.values()) {
+			offset += align4(table[1]);
+			sfntSize += align4(table[2]);
+		}
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream(woff.length);
+		output.write(woff, 0, 8);
+		writeInt(output, offset);
+		writeShort(output, tables.size());
+		writeShort(output, 0);
+		writeInt(output, (int)sfntSize);
+		// major/minor version
+		output.write(woff, 20, 4);
+		// no metadata or private data
+		for (int i=0; i<5; i++) {
+			writeInt(output, 0);
+		}
+
+		offset = 44 + tables.size()*20;
+		for (String tag : tables.keySet()) {
+			int[] table = tables.get(tag);
+			output.write(tag.getBytes(ASCII), 0, 4);
+			writeInt(output, offset);
+			writeInt(output, table[1]);
+			writeInt(output, table[2]);
+			writeInt(output, table[3]);
+			offset += align4(table[1]);
+		}
+
+		for (int[] table : tables.values()) {
+			output.write(woff, table[0], table[1]);
+			writePadding(output, table[1]);
+		}
+
+		return output.toByteArray();
+	}
+
+	private static boolean isInRange(byte[] data, int offset, int length) {
+		return offset >= 0 && length >= 0 && offset <= data.length-length;
+	}
+
+	private static void writeDirectoryHeader(ByteArrayOutputStream output, byte[] font, int numTables) {
+		int entrySelector = 0;
+		while ((2 << entrySelector) <= numTables) {
+			entrySelector++;
+		}
+		int searchRange = (1 << entrySelector) * 16;
+
+		// sfnt version
+		output.write(font, 0, 4);
+		writeShort(output, numTables);
+		writeShort(output, searchRange);
+		writeShort(output, entrySelector);
+		writeShort(output, numTables*16 - searchRange);
+	}
+
+	private static long checksum(byte[] data, int offset, int length) {
+		long sum = 0;
+		int end = offset+length;
+		for (int i=offset; i<end; i+=4) {
+			long word = 0;
+			for (int j=0; j<4; j++) {
+				word = (word << 8) | ((i+j < end) ? (data[i+j] & 0xFF) : 0);
+			}
+			sum = (sum + word) & 0xFFFFFFFFL;
+		}
+		return sum;
+	}
+
+	private static int align4(int length) {
+		return (length + 3) & ~3;
+	}
+
+	private static void writePadding(ByteArrayOutputStream output, int length) {
+		for (int i=length; i<align4(length); i++) {
+			output.write(0);
+		}
+	}
+
+	private static int readUShort(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xFF) << 8) | (bytes[offset+1] & 0xFF);
+	}
+
+	private static int readInt(byte[] bytes, int offset) {
+		return (readUShort(bytes, offset) << 16) | readUShort(bytes, offset+2);
+	}
+
+	private static void writeShort(ByteArrayOutputStream output, int value) {
+		output.write(value >>> 8);
+		output.write(value);
+	}
+
+	private static void writeInt(ByteArrayOutputStream output, int value) {
+		writeShort(output, value >>> 16);
+		writeShort(output, value);
+	}
+
+	private static void writeInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte)(value >>> 24);
+		bytes[offset+1] = (byte)(value >>> 16);
+		bytes[offset+2] = (byte)(value >>> 8);
+		bytes[offset+3] = (byte)value;
+	}
+}
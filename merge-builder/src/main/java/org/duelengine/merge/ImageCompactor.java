@@ -0,0 +1,523 @@
+package org.duelengine.merge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Losslessly shrinks images by dropping metadata which does not affect rendering.
+ * PNG image data is also recompressed at the best deflate level.
+ * Falls back to copying the original whenever the result is not smaller.
+ */
+class ImageCompactor extends NullCompactor {
+
+	private static final Logger log = LoggerFactory.getLogger(ImageCompactor.class);
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private static final String PNG_EXT = ".png";
+	private static final String GIF_EXT = ".gif";
+	private static final String[] JPEG_EXTS = { ".jpg", ".jpeg", ".jpe" };
+	private static final String[] SUPPORTED_EXTS = { PNG_EXT, GIF_EXT, ".jpg", ".jpeg", ".jpe" };
+
+	private static final byte[] PNG_SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+	// ancillary PNG chunks which affect how the image is rendered
+	private static final Set<String> PNG_RENDERING_CHUNKS = new HashSet<String>(Arrays.asList(
+		"tRNS", "gAMA", "cHRM", "sRGB", "iCCP", "sBIT"));
+
+	// APNG animation chunks
+	private static final Set<String> PNG_ANIMATION_CHUNKS = new HashSet<String>(Arrays.asList(
+		"acTL", "fcTL", "fdAT"));
+
+	// GIF application extensions which affect playback or color
+	private static final Set<String> GIF_RENDERING_APPS = new HashSet<String>(Arrays.asList(
+		"NETSCAPE2.0", "ANIMEXTS1.0", "ICCRGBG1012"));
+
+	/**
+	 * Registers the supported image types among the configured CDN file extensions
+	 */
+	public static class Provider implements CompactorProvider {
+
+		@Override
+		public String getName() {
+			return "image";
+		}
+
+		@Override
+		public String[] getSourceExtensions(Settings settings) {
+			return filterSupported(settings.getExtensions());
+		}
+
+		@Override
+		public boolean isIsolated() {
+			return true;
+		}
+
+		@Override
+		public Compactor create(Settings settings) {
+			return new ImageCompactor(settings.getExtensions());
+		}
+	}
+
+	/**
+	 * @param extensions the configured CDN file extensions, only supported image types are registered
+	 */
+	public ImageCompactor(String... extensions) {
+		super(filterSupported(extensions));
+	}
+
+	private static String[] filterSupported(String... extensions) {
+		List<String> supported = new ArrayList<String>();
+		if (extensions != null) {
+			for (String ext : extensions) {
+				for (String image : SUPPORTED_EXTS) {
+					if (image.equalsIgnoreCase(ext)) {
+						supported.add(ext);
+						break;
+					}
+				}
+			}
+		}
+		return supported.toArray(new String[supported.size()]);
+	}
+
+	@Override
+	public void compact(BuildManager manager, Resource resource, File target)
+			throws IOException {
+
+		String path = resource.getPath();
+		byte[] original = resource.getBytes();
+		byte[] output;
+
+		try {
+			String ext = BuildManager.getExtension(path);
+			if (PNG_EXT.equalsIgnoreCase(ext)) {
+				output = compactPNG(original);
+
+			} else if (GIF_EXT.equalsIgnoreCase(ext)) {
+				output = compactGIF(original);
+
+			} else if (isJPEG(ext)) {
+				output = compactJPEG(original);
+
+			} else {
+				output = null;
+			}
+
+		} catch (IndexOutOfBoundsException ex) {
+			log.warn("Malformed image (copying original): "+path);
+			output = null;
+
+		} catch (DataFormatException ex) {
+			log.warn("Malformed image data (copying original): "+path);
+			output = null;
+		}
+
+		if (output == null || output.length >= original.length) {
+			output = original;
+
+		} else {
+			log.info("Image {}: {} => {} bytes", path, original.length, output.length);
+		}
+
+		// ensure parent path exists
+		target.getParentFile().mkdirs();
+
+		FileOutputStream stream = new FileOutputStream(target);
+		try {
+			stream.write(output);
+
+		} finally {
+			stream.flush();
+			stream.close();
+		}
+	}
+
+	private static boolean isJPEG(String ext) {
+		for (String jpeg : JPEG_EXTS) {
+			if (jpeg.equalsIgnoreCase(ext)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Keeps critical and rendering chunks, joins all IDAT chunks and recompresses them
+	 * @param png
+	 * @return null if the image should be left as is
+	 * @throws DataFormatException
+	 */
+	static byte[] compactPNG(byte[] png)
+			throws DataFormatException {
+
+		if (png.length < PNG_SIGNATURE.length || !startsWith(png, 0, PNG_SIGNATURE)) {
+			return null;
+		}
+
+		ByteArrayOutputStream idat = new ByteArrayOutputStream(png.length);
+		List<byte[]> chunks = new ArrayList<byte[]>();
+		int idatIndex = -1;
+
+		int offset = PNG_SIGNATURE.length;
+		while (offset + 12 <= png.length) {
+			int length = readInt(png, offset, true);
+			String type = new String(png, offset+4, 4, ASCII);
+			int dataStart = offset+8;
+			int next = dataStart+length+4;
+			if (length < 0 || next > png.length) {
+				return null;
+			}
+
+			if ("IDAT".equals(type)) {
+				if (idatIndex < 0) {
+					idatIndex = chunks.size();
+				}
+				idat.write(png, dataStart, length);
+
+			} else if (PNG_ANIMATION_CHUNKS.contains(type)) {
+				// frames must stay interleaved as they are
+				return null;
+
+			} else if (Character.isUpperCase(type.charAt(0)) || PNG_RENDERING_CHUNKS.contains(type)) {
+				// critical chunk (IHDR, PLTE, IEND) or one which affects rendering
+				chunks.add(Arrays.copyOfRange(png, offset, next));
+			}
+
+			offset = next;
+			if ("IEND".equals(type)) {
+				break;
+			}
+		}
+
+		if (idatIndex < 0) {
+			return null;
+		}
+
+		byte[] pixels = inflate(idat.toByteArray());
+		byte[] deflated = deflate(pixels, Deflater.DEFAULT_STRATEGY);
+		byte[] filtered = deflate(pixels, Deflater.FILTERED);
+		if (filtered.length < deflated.length) {
+			deflated = filtered;
+		}
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream(png.length);
+		output.write(PNG_SIGNATURE, 0, PNG_SIGNATURE.length);
+		for (int i=0; i<chunks.size(); i++) {
+			if (i == idatIndex) {
+				writeChunk(output, "IDAT", deflated);
+			}
+			byte[] chunk = chunks.get(i);
+			output.write(chunk, 0, chunk.length);
+		}
+		if (idatIndex == chunks.size()) {
+			// truncated before IEND
+			writeChunk(output, "IDAT", deflated);
+		}
+		return output.toByteArray();
+	}
+
+	/**
+	 * Drops comments and application metadata segments.
+	 * Color profiles, Adobe color transforms and non-default orientation are kept.
+	 * @param jpeg
+	 * @return null if the image should be left as is
+	 */
+	static byte[] compactJPEG(byte[] jpeg) {
+		if (jpeg.length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8) {
+			return null;
+		}
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream(jpeg.length);
+		output.write(jpeg, 0, 2);
+
+		int offset = 2;
+		while (offset + 4 <= jpeg.length) {
+			if ((jpeg[offset] & 0xFF) != 0xFF) {
+				return null;
+			}
+			int marker = jpeg[offset+1] & 0xFF;
+			if (marker == 0xFF) {
+				// fill byte
+				offset++;
+				continue;
+			}
+
+			if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD9)) {
+				// standalone marker
+				output.write(jpeg, offset, 2);
+				offset += 2;
+				if (marker == 0xD9) {
+					return output.toByteArray();
+				}
+				continue;
+			}
+
+			if (marker == 0xDA) {
+				// start of scan: entropy coded data and any later scans are kept as is
+				output.write(jpeg, offset, jpeg.length-offset);
+				return output.toByteArray();
+			}
+
+			int length = ((jpeg[offset+2] & 0xFF) << 8) | (jpeg[offset+3] & 0xFF);
+			int next = offset+2+length;
+			if (length < 2 || next > jpeg.length) {
+				return null;
+			}
+
+			int dataStart = offset+4;
+			switch (marker) {
+				case 0xE0:
+					// keep JFIF but not JFXX thumbnails
+					if (startsWith(jpeg, dataStart, "JFIF\0".getBytes(ASCII))) {
+						output.write(jpeg, offset, next-offset);
+					}
+					break;
+
+				case 0xE1:
+					// keep only the orientation from Exif, drop XMP
+					int orientation = readExifOrientation(jpeg, dataStart, next);
+					if (orientation > 1) {
+						writeExifOrientation(output, orientation);
+					}
+					break;
+
+				case 0xE2:
+				case 0xEE:
+					// ICC color profile, Adobe color transform
+					output.write(jpeg, offset, next-offset);
+					break;
+
+				case 0xFE:
+					// comment
+					break;
+
+				default:
+					if (marker >= 0xE3 && marker <= 0xEF) {
+						// other application metadata
+						break;
+					}
+					output.write(jpeg, offset, next-offset);
+					break;
+			}
+
+			offset = next;
+		}
+
+		return null;
+	}
+
+	private static int readExifOrientation(byte[] jpeg, int start, int end) {
+		if (!startsWith(jpeg, start, "Exif\0\0".getBytes(ASCII))) {
+			return 0;
+		}
+
+		int tiff = start+6;
+		if (tiff+8 > end) {
+			return 0;
+		}
+
+		boolean bigEndian = (jpeg[tiff] == 'M');
+		int ifd = tiff + readInt(jpeg, tiff+4, bigEndian);
+		if (ifd+2 > end) {
+			return 0;
+		}
+
+		int count = readShort(jpeg, ifd, bigEndian);
+		for (int i=0; i<count; i++) {
+			int entry = ifd+2+(i*12);
+			if (entry+12 > end) {
+				break;
+			}
+			if (readShort(jpeg, entry, bigEndian) == 0x0112) {
+				return readShort(jpeg, entry+8, bigEndian);
+			}
+		}
+		return 0;
+	}
+
+	private static void writeExifOrientation(ByteArrayOutputStream output, int orientation) {
+		byte[] exif = {
+			(byte)0xFF, (byte)0xE1, 0, 34,
+			'E', 'x', 'i', 'f', 0, 0,
+			// big-endian TIFF header with IFD0 at offset 8
+			'M', 'M', 0, 42, 0, 0, 0, 8,
+			// one entry: orientation SHORT x1
+			0, 1,
+			0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte)orientation, 0, 0,
+			// no next IFD
+			0, 0, 0, 0
+		};
+		output.write(exif, 0, exif.length);
+	}
+
+	/**
+	 * Drops comment and non-essential application extension blocks
+	 * @param gif
+	 * @return null if the image should be left as is
+	 */
+	static byte[] compactGIF(byte[] gif) {
+		if (gif.length < 13 || !startsWith(gif, 0, "GIF8".getBytes(ASCII))) {
+			return null;
+		}
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream(gif.length);
+
+		// header, logical screen descriptor and global color table
+		int offset = 13 + colorTableSize(gif[10]);
+		output.write(gif, 0, offset);
+
+		while (offset < gif.length) {
+			int block = gif[offset] & 0xFF;
+			if (block == 0x3B) {
+				// trailer
+				output.write(block);
+				return output.toByteArray();
+			}
+
+			int start = offset;
+			if (block == 0x21) {
+				int label = gif[offset+1] & 0xFF;
+				offset = skipSubBlocks(gif, offset+2);
+
+				boolean keep = true;
+				if (label == 0xFE) {
+					// comment
+					keep = false;
+
+				} else if (label == 0xFF && (gif[start+2] & 0xFF) == 11) {
+					String app = new String(gif, start+3, 11, ASCII);
+					keep = GIF_RENDERING_APPS.contains(app);
+				}
+
+				if (keep) {
+					output.write(gif, start, offset-start);
+				}
+
+			} else if (block == 0x2C) {
+				// image descriptor, local color table, LZW code size and image data
+				offset += 10 + colorTableSize(gif[offset+9]);
+				offset = skipSubBlocks(gif, offset+1);
+				output.write(gif, start, offset-start);
+
+			} else {
+				return null;
+			}
+		}
+
+		return null;
+	}
+
+	private static int colorTableSize(byte packed) {
+		if ((packed & 0x80) == 0) {
+			return 0;
+		}
+		return 3 * (1 << ((packed & 0x07) + 1));
+	}
+
+	private static int skipSubBlocks(byte[] gif, int offset) {
+		int size;
+		while ((size = gif[offset] & 0xFF) != 0) {
+			offset += size+1;
+		}
+		return offset+1;
+	}
+
+	private static void writeChunk(ByteArrayOutputStream output, String type, byte[] data) {
+		byte[] typeBytes = type.getBytes(ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data);
+
+		writeInt(output, data.length);
+		output.write(typeBytes, 0, typeBytes.length);
+		output.write(data, 0, data.length);
+		writeInt(output, (int)crc.getValue());
+	}
+
+	private static byte[] inflate(byte[] data)
+			throws DataFormatException {
+
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+			ByteArrayOutputStream output = new ByteArrayOutputStream(data.length * 4);
+			byte[] buffer = new byte[8192];
+			while (!inflater.finished()) {
+				int count = inflater.inflate(buffer);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new DataFormatException("Truncated image data");
+				}
+				output.write(buffer, 0, count);
+			}
+			return output.toByteArray();
+
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static byte[] deflate(byte[] data, int strategy) {
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try {
+			deflater.setStrategy(strategy);
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2 + 64);
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				int count = deflater.deflate(buffer);
+				output.write(buffer, 0, count);
+			}
+			return output.toByteArray();
+
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static boolean startsWith(byte[] bytes, int offset, byte[] prefix) {
+		if (offset+prefix.length > bytes.length) {
+			return false;
+		}
+		for (int i=0; i<prefix.length; i++) {
+			if (bytes[offset+i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int readShort(byte[] bytes, int offset, boolean bigEndian) {
+		int a = bytes[offset] & 0xFF,
+			b = bytes[offset+1] & 0xFF;
+		return bigEndian ? (a << 8) | b : (b << 8) | a;
+	}
+
+	private static int readInt(byte[] bytes, int offset, boolean bigEndian) {
+		int hi = readShort(bytes, offset, bigEndian),
+			lo = readShort(bytes, offset+2, bigEndian);
+		return bigEndian ? (hi << 16) | lo : (lo << 16) | hi;
+	}
+
+	private static void writeInt(ByteArrayOutputStream output, int value) {
+		output.write(value >>> 24);
+		output.write(value >>> 16);
+		output.write(value >>> 8);
+		output.write(value);
+	}
+}
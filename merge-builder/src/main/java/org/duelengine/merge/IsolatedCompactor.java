@@ -0,0 +1,8 @@
+package org.duelengine.merge;
+
+/**
+ * Marks a compactor whose output depends only upon the contents of its own source file.
+ * Results from these compactors may be reused as long as the source is unchanged.
+ */
+public interface IsolatedCompactor extends Compactor {
+}
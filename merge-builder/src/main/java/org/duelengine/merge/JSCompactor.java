@@ -1,6 +1,7 @@
 package org.duelengine.merge;
 
 import java.io.*;
+import java.security.*;
 import java.util.*;
 import java.util.logging.Level;
 
@@ -9,30 +10,71 @@ import com.google.javascript.jscomp.Compiler;
 
 class JSCompactor extends NullCompactor {
 
+	private static final String CHAR_ENCODING = "UTF-8";
+	private List<SourceFile> externs;
+
+	/**
+	 * Defers loading the Closure Compiler until the first script is found
+	 */
+	public static class Provider implements CompactorProvider {
+
+		@Override
+		public String getName() {
+			return "js";
+		}
+
+		@Override
+		public String[] getSourceExtensions(Settings settings) {
+			return new String[] { ".js" };
+		}
+
+		@Override
+		public boolean isIsolated() {
+			return true;
+		}
+
+		@Override
+		public Compactor create(Settings settings) {
+			return new JSCompactor();
+		}
+	}
+
 	public JSCompactor() {
 		super(".js");
 	}
 
 	@Override
-	public void compact(BuildManager manager, String path, File source, File target)
+	public void calcHash(BuildManager manager, MessageDigest hash, Resource resource)
+			throws IOException, NoSuchAlgorithmException {
+
+		super.calcHash(manager, hash, resource);
+
+		// output differs for each set of compiler options
+		hash.update(getOptionsFingerprint(manager, resource.getPath()).getBytes(CHAR_ENCODING));
+	}
+
+	@Override
+	public void compact(BuildManager manager, Resource resource, File target)
 			throws IOException {
 
+		String path = resource.getPath();
+
 		// adapted from http://blog.bolinfest.com/2009/11/calling-closure-compiler-from-java.html
 		CompilerOptions options = new CompilerOptions();
 
-		// Simple mode is used here, but additional options could be set, too.
-		CompilationLevel.SIMPLE_OPTIMIZATIONS.setOptionsForCompilationLevel(options);
+		// Simple mode is the default, but each path may choose its own profile.
+		CompilationLevel level = getCompilationLevel(manager, path);
+		level.setOptionsForCompilationLevel(options);
 
 		// only log warnings
 		Compiler.setLoggingLevel(Level.WARNING);
 
 		Compiler compiler = new Compiler();
 
-		List<SourceFile> externs = CommandLineRunner.getDefaultExterns();
-		List<SourceFile> inputs = Collections.singletonList(SourceFile.fromFile(source));
+		List<SourceFile> inputs = Collections.singletonList(SourceFile.fromCode(path, resource.getText(CHAR_ENCODING)));
 
 		// compile() returns a Result, but it is not needed here.
-		compiler.compile(externs, inputs, options);
+		compiler.compile(getExterns(level), inputs, options);
 
 		FileWriter writer = new FileWriter(target, false);
 		try {
@@ -46,4 +88,39 @@ class JSCompactor extends NullCompactor {
 			writer.close();
 		}
 	}
+
+	/**
+	 * Identifies everything other than the source which affects the output
+	 * @param manager
+	 * @param path
+	 * @return
+	 */
+	private String getOptionsFingerprint(BuildManager manager, String path) {
+		return "closure-"+Compiler.getReleaseVersion()+':'+getCompilationLevel(manager, path).name();
+	}
+
+	private static CompilationLevel getCompilationLevel(BuildManager manager, String path) {
+		// validated when configured
+		return CompilationLevel.valueOf(manager.getSettings().getJSCompilation(path));
+	}
+
+	/**
+	 * Default externs are loaded once and shared across compilations
+	 * @param level
+	 * @return
+	 * @throws IOException
+	 */
+	private synchronized List<SourceFile> getExterns(CompilationLevel level)
+			throws IOException {
+
+		if (level == CompilationLevel.WHITESPACE_ONLY) {
+			// no symbols are renamed or removed
+			return Collections.emptyList();
+		}
+
+		if (externs == null) {
+			externs = CommandLineRunner.getDefaultExterns();
+		}
+		return externs;
+	}
 }
@@ -3,6 +3,8 @@ package org.duelengine.merge;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.List;
 
 public class JSPlaceholderGenerator implements PlaceholderGenerator {
@@ -20,6 +22,11 @@ public class JSPlaceholderGenerator implements PlaceholderGenerator {
 			nocache = nocache.substring(0, dot);
 		}
 
+		if (manager.getSettings().isAsyncPlaceholders()) {
+			this.buildAsync(manager, target, children, nocache);
+			return;
+		}
+
 		target.getParentFile().mkdirs();
 		FileWriter writer = new FileWriter(target, false);
 
@@ -65,4 +72,97 @@ public class JSPlaceholderGenerator implements PlaceholderGenerator {
 			writer.close();
 		}
 	}
+
+	/**
+	 * Injects scripts which download in parallel but execute in order without blocking the parser
+	 */
+	private void buildAsync(BuildManager manager, File target, List<String> children, String nocache) throws IOException {
+		List<String> urls = new ArrayList<String>();
+		for (String child : MergeCompactor.flatten(manager, children)) {
+			urls.add(manager.getPlaceholderPath(child)+nocache);
+		}
+
+		target.getParentFile().mkdirs();
+		FileWriter writer = new FileWriter(target, false);
+
+		try {
+			writer
+				.append("(function() {\n")
+				.append("\t// load the original files in parallel but execute them in order; append anti-caching suffix\n");
+
+			writeScriptList(writer, urls);
+
+			writer
+				.append("\tif (!s) { s=d.getElementsByTagName('script'); s=s[s.length-1]; }\n");
+
+			writeInjection(writer, "\t");
+
+			writer
+				.append("})();");
+
+		} finally {
+			writer.flush();
+			writer.close();
+		}
+	}
+
+	@Override
+	public void buildLoader(BuildManager manager, File target, List<String> urls) throws IOException {
+		target.getParentFile().mkdirs();
+		FileWriter writer = new FileWriter(target, false);
+
+		try {
+			writer
+				.append("(function() {\n")
+				.append("\t// fetch chunks in parallel but execute them in order; relative URLs resolve against this script\n");
+
+			writeScriptList(writer, urls);
+
+			writer
+				.append("\tif (!s) { s=d.getElementsByTagName('script'); s=s[s.length-1]; }\n")
+				.append("\tb=s.src.substring(0, s.src.lastIndexOf('/')+1);\n")
+				.append("\tfor (i=0; i<c.length; i++) { if (c[i].charAt(0) !== '/') { c[i]=b+c[i]; } }\n")
+				.append("\tif (d.readyState === 'loading' && !s.async && !s.defer) {\n")
+				.append("\t\tfor (i=0; i<c.length; i++) { d.write('\\u003cscript type=\"text/javascript\" src=\"'+c[i]+'\">\\u003c/script>'); }\n")
+				.append("\t} else {\n");
+
+			writeInjection(writer, "\t\t");
+
+			writer
+				.append("\t}\n")
+				.append("})();");
+
+		} finally {
+			writer.flush();
+			writer.close();
+		}
+	}
+
+	private static void writeScriptList(Writer writer, List<String> urls) throws IOException {
+		writer.append("\tvar d=document, s=d.currentScript, c=[");
+
+		boolean needsDelim = false;
+		for (String url : urls) {
+			if (needsDelim) {
+				writer.append(',');
+			} else {
+				needsDelim = true;
+			}
+			writer
+				.append('\'')
+				.append(url.replace("'", "\\'"))
+				.append('\'');
+		}
+
+		writer.append("], b, e, i, n;\n");
+	}
+
+	/**
+	 * Scripts inserted with async=false download in parallel but execute in insertion order
+	 */
+	private static void writeInjection(Writer writer, String indent) throws IOException {
+		writer
+			.append(indent).append("n=s.nextSibling;\n")
+			.append(indent).append("for (i=0; i<c.length; i++) { e=d.createElement('script'); e.type='text/javascript'; e.async=false; e.src=c[i]; s.parentNode.insertBefore(e, n); }\n");
+	}
 }
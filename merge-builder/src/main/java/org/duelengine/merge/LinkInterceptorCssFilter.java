@@ -1,8 +1,12 @@
 package org.duelengine.merge;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Base64;
 
 import org.duelengine.css.ast.ContainerNode;
 import org.duelengine.css.ast.CssNode;
@@ -68,50 +72,41 @@ public class LinkInterceptorCssFilter implements CssFilter {
 					break;
 				}
 
-				String suffix = "";
-				if (val.charAt(0) != '/') {
-					URI context = getContextPath(path);
-					if (context != null) {
-						// resolve relative URLs and isolate the path part
-						URI uri = context.resolve(val);
-						if (uri.getHost() == null && uri.getScheme() == null) {
-							val = uri.getPath();
-							if (uri.getQuery() != null) {
-								suffix += '?'+uri.getQuery();
-							}
-							if (uri.getFragment() != null) {
-								suffix += '#'+uri.getFragment();
-							}
-						}
-					}
+				String[] parts = splitUrl(this.path, val);
+				val = parts[0];
+				String suffix = parts[1];
+
+				manager.ensureProcessed(val);
+
+				String valHash;
+				if (suffix.isEmpty() && isInlined(manager, val)) {
+					// no child link as the asset is embedded
+					try {
+						valHash = toDataUri(manager.getTargetFile(val), MimeTypes.get(val));
 
-				} else {
-					// query and hash
-					int query = val.indexOf('?');
-					if (query >= 0) {
-						suffix += val.substring(query);
-						val = val.substring(0, query);
+					} catch (IOException ex) {
+						log.error(ex.getMessage(), ex);
+						break;
 					}
-					int hash = val.indexOf('#');
-					if (hash >= 0) {
-						suffix += val.substring(hash);
-						val = val.substring(0, hash);
+
+					if (child instanceof StringNode) {
+						valHash = CssLexer.encodeString(valHash);
 					}
+					valNode.setValue(valHash);
+					log.info("CSS url: {} => inlined", val);
+					continue;
 				}
 
 				manager.addChildLink(this.path, val);
 
-				manager.ensureProcessed(val);
-
-				String valHash = manager.getProcessedPath(val);
+				valHash = manager.getProcessedPath(val);
 				if (valHash == null) {
 					log.warn("Missing CSS reference: "+val);
 					break;
 				}
 
-				// trim path to just filename
-				// this will make URL relative from stylesheet
-				valHash = valHash.substring(valHash.lastIndexOf('/')+1);
+				// make URL relative from stylesheet
+				valHash = manager.getSettings().getRelativeHashPath(valHash);
 
 				val += suffix;
 				valHash += suffix;
@@ -120,7 +115,7 @@ public class LinkInterceptorCssFilter implements CssFilter {
 					valHash = CssLexer.encodeString(valHash);
 				}
 				valNode.setValue(valHash);
-				log.info("CSS url: "+val+" => "+valHash);
+				log.info("CSS url: {} => {}", val, valHash);
 
 			} else {
 				log.warn("Unexpected CSS url type: "+child.getNodeType());
@@ -130,7 +125,79 @@ public class LinkInterceptorCssFilter implements CssFilter {
 		return node;
 	}
 
-	private URI getContextPath(String path) {
+	/**
+	 * Resolves a CSS URL against the stylesheet path
+	 * @param path the stylesheet path
+	 * @param val the URL value
+	 * @return the resolved path and any query/hash suffix
+	 */
+	static String[] splitUrl(String path, String val) {
+		String suffix = "";
+		if (val.charAt(0) != '/') {
+			URI context = getContextPath(path);
+			if (context != null) {
+				// resolve relative URLs and isolate the path part
+				URI uri = context.resolve(val);
+				if (uri.getHost() == null && uri.getScheme() == null) {
+					val = uri.getPath();
+					if (uri.getQuery() != null) {
+						suffix += '?'+uri.getQuery();
+					}
+					if (uri.getFragment() != null) {
+						suffix += '#'+uri.getFragment();
+					}
+				}
+			}
+
+		} else {
+			// query and hash
+			int query = val.indexOf('?');
+			if (query >= 0) {
+				suffix += val.substring(query);
+				val = val.substring(0, query);
+			}
+			int hash = val.indexOf('#');
+			if (hash >= 0) {
+				suffix += val.substring(hash);
+				val = val.substring(0, hash);
+			}
+		}
+
+		return new String[] { val, suffix };
+	}
+
+	/**
+	 * Determines if a processed image or font is small enough to embed as a "data:" URI
+	 * @param manager
+	 * @param val the asset path
+	 * @return
+	 */
+	static boolean isInlined(BuildManager manager, String val) {
+		int limit = manager.getSettings().getInlineLimit();
+		if (limit < 1 || !MimeTypes.isEmbeddable(val) || manager.getProcessedPath(val) == null) {
+			return false;
+		}
+
+		File target = manager.getTargetFile(val);
+		return target.isFile() && target.length() <= limit;
+	}
+
+	private static String toDataUri(File target, String mimeType)
+			throws IOException {
+
+		byte[] bytes = new byte[(int)target.length()];
+		DataInputStream stream = new DataInputStream(new FileInputStream(target));
+		try {
+			stream.readFully(bytes);
+
+		} finally {
+			stream.close();
+		}
+
+		return "data:"+mimeType+";base64,"+Base64.getEncoder().encodeToString(bytes);
+	}
+
+	private static URI getContextPath(String path) {
 		try {
 			return new URI(path);
 
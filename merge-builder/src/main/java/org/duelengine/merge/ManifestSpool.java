@@ -0,0 +1,409 @@
+package org.duelengine.merge;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Spills manifest entries to disk as sorted runs and merges them back in key order.
+ * Later spills take precedence when the same key appears in more than one run.
+ * Spilled entries remain available by key through a compact index of key fingerprints.
+ */
+class ManifestSpool {
+
+	/**
+	 * Receives merged entries in key order
+	 */
+	public interface EntryHandler {
+		void handle(String key, String value)
+			throws IOException;
+	}
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// runs are merged into one before more than this many need to be read at once
+	private static final int MAX_RUNS = 32;
+	private static final int OFFSET_BITS = 40;
+	private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1L;
+
+	private final List<File> runs = new ArrayList<File>();
+
+	// sorted key fingerprints, each with the run and offset of its newest entry
+	private long[] fingerprints = new long[0];
+	private long[] positions = new long[0];
+
+	/**
+	 * Writes the entries to disk as a sorted run
+	 * @param entries
+	 * @throws IOException
+	 */
+	public void spill(Map<String, String> entries)
+			throws IOException {
+
+		if (entries.isEmpty()) {
+			return;
+		}
+
+		if (runs.size() >= MAX_RUNS) {
+			compact();
+		}
+
+		long run = runs.size();
+		File file = File.createTempFile("cdn", ".run");
+		file.deleteOnExit();
+		runs.add(file);
+
+		long[][] batch = new long[entries.size()][];
+		int count = 0;
+
+		RunWriter writer = new RunWriter(file);
+		try {
+			for (Map.Entry<String, String> entry : new TreeMap<String, String>(entries).entrySet()) {
+				batch[count++] = new long[] { fingerprint(entry.getKey()), (run << OFFSET_BITS) | writer.offset };
+				writer.write(entry.getKey(), entry.getValue());
+			}
+
+		} finally {
+			writer.close();
+		}
+
+		index(batch);
+	}
+
+	/**
+	 * Determines if the key has been spilled
+	 * @param key
+	 * @return
+	 */
+	public boolean contains(String key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Reads the newest spilled value for a key
+	 * @param key
+	 * @return null if the key has not been spilled
+	 */
+	public String get(String key) {
+		int i = Arrays.binarySearch(fingerprints, fingerprint(key));
+		if (i < 0) {
+			return null;
+		}
+
+		long position = positions[i];
+		try {
+			RandomAccessFile input = new RandomAccessFile(runs.get((int)(position >>> OFFSET_BITS)), "r");
+			try {
+				input.seek(position & OFFSET_MASK);
+				String found = readString(input);
+				String value = readString(input);
+
+				// fingerprints of distinct keys may collide
+				return key.equals(found) ? value : null;
+
+			} finally {
+				input.close();
+			}
+
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * Merges all spilled runs with the remaining in-memory entries.
+	 * Each key is emitted once, in sorted order.
+	 * @param remaining entries not yet spilled (these take precedence)
+	 * @param handler
+	 * @throws IOException
+	 */
+	public void merge(Map<String, String> remaining, EntryHandler handler)
+			throws IOException {
+
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+		List<RunReader> readers = new ArrayList<RunReader>(runs.size());
+		try {
+			int order = 0;
+			for (File run : runs) {
+				RunReader reader = new RunReader(order++, run);
+				readers.add(reader);
+				if (reader.advance()) {
+					queue.add(reader);
+				}
+			}
+
+			RunReader memory = new RunReader(order, new TreeMap<String, String>(remaining).entrySet().iterator());
+			if (memory.advance()) {
+				queue.add(memory);
+			}
+
+			while (!queue.isEmpty()) {
+				// newest run sorts first for equal keys
+				RunReader reader = queue.remove();
+				String key = reader.key;
+				String value = reader.value;
+				requeue(queue, reader);
+
+				// skip any superseded values for the same key
+				while (!queue.isEmpty() && queue.peek().key.equals(key)) {
+					requeue(queue, queue.remove());
+				}
+
+				handler.handle(key, value);
+			}
+
+		} finally {
+			for (RunReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Removes any spilled runs
+	 */
+	public void clear() {
+		for (File run : runs) {
+			run.delete();
+		}
+		runs.clear();
+		fingerprints = new long[0];
+		positions = new long[0];
+	}
+
+	private static void requeue(PriorityQueue<RunReader> queue, RunReader reader)
+			throws IOException {
+
+		if (reader.advance()) {
+			queue.add(reader);
+		}
+	}
+
+	/**
+	 * Merges every run into one, moving each indexed position into the merged run
+	 * @throws IOException
+	 */
+	private void compact()
+			throws IOException {
+
+		File file = File.createTempFile("cdn", ".run");
+		file.deleteOnExit();
+
+		final RunWriter writer = new RunWriter(file);
+		boolean merged = false;
+		try {
+			merge(Collections.<String, String>emptyMap(), new EntryHandler() {
+				@Override
+				public void handle(String key, String value)
+						throws IOException {
+
+					int i = Arrays.binarySearch(fingerprints, fingerprint(key));
+					if (i >= 0) {
+						positions[i] = writer.offset;
+					}
+					writer.write(key, value);
+				}
+			});
+			merged = true;
+
+		} finally {
+			writer.close();
+			if (!merged) {
+				file.delete();
+			}
+		}
+
+		for (File run : runs) {
+			run.delete();
+		}
+		runs.clear();
+		runs.add(file);
+	}
+
+	/**
+	 * Adds a batch of fingerprints and positions, which supersede any already indexed
+	 * @param batch pairs of fingerprint and position
+	 */
+	private void index(long[][] batch) {
+		Arrays.sort(batch, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				return Long.compare(a[0], b[0]);
+			}
+		});
+
+		long[] mergedKeys = new long[fingerprints.length+batch.length];
+		long[] mergedPositions = new long[mergedKeys.length];
+		int i = 0, j = 0, count = 0;
+
+		while (i < fingerprints.length || j < batch.length) {
+			long key;
+			if (j >= batch.length || (i < fingerprints.length && fingerprints[i] < batch[j][0])) {
+				key = fingerprints[i];
+				mergedPositions[count] = positions[i++];
+
+			} else {
+				key = batch[j][0];
+				mergedPositions[count] = batch[j++][1];
+				if (i < fingerprints.length && fingerprints[i] == key) {
+					// newer entry wins
+					i++;
+				}
+			}
+
+			if (count > 0 && mergedKeys[count-1] == key) {
+				// colliding keys within a batch keep only one position
+				mergedPositions[count-1] = mergedPositions[count];
+				continue;
+			}
+			mergedKeys[count++] = key;
+		}
+
+		fingerprints = Arrays.copyOf(mergedKeys, count);
+		positions = Arrays.copyOf(mergedPositions, count);
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of the key
+	 */
+	private static long fingerprint(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i=0, length=key.length(); i<length; i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static String readString(DataInput input)
+			throws IOException {
+
+		byte[] bytes = new byte[input.readInt()];
+		input.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static class RunWriter {
+
+		private final DataOutputStream output;
+		long offset;
+
+		public RunWriter(File run)
+				throws IOException {
+
+			this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)));
+		}
+
+		public void write(String key, String value)
+				throws IOException {
+
+			writeString(key);
+			writeString(value != null ? value : "");
+		}
+
+		private void writeString(String value)
+				throws IOException {
+
+			// unlike writeUTF, values are not limited to 64K
+			byte[] bytes = value.getBytes(UTF8);
+			output.writeInt(bytes.length);
+			output.write(bytes);
+			offset += 4+bytes.length;
+		}
+
+		public void close()
+				throws IOException {
+
+			output.flush();
+			output.close();
+		}
+	}
+
+	private static class RunReader implements Comparable<RunReader> {
+
+		private final int order;
+		private final DataInputStream input;
+		private final Iterator<Map.Entry<String, String>> entries;
+		String key;
+		String value;
+
+		public RunReader(int order, File run)
+				throws IOException {
+
+			this.order = order;
+			this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+			this.entries = Collections.<Map.Entry<String, String>>emptyList().iterator();
+		}
+
+		public RunReader(int order, Iterator<Map.Entry<String, String>> entries) {
+			this.order = order;
+			this.input = null;
+			this.entries = entries;
+		}
+
+		public boolean advance()
+				throws IOException {
+
+			if (input == null) {
+				if (!entries.hasNext()) {
+					return false;
+				}
+				Map.Entry<String, String> entry = entries.next();
+				key = entry.getKey();
+				value = entry.getValue();
+				return true;
+			}
+
+			try {
+				key = readString(input);
+				value = readString(input);
+				return true;
+
+			} catch (EOFException ex) {
+				return false;
+			}
+		}
+
+		public void close() {
+			if (input == null) {
+				return;
+			}
+
+			try {
+				input.close();
+
+			} catch (IOException ex) {
+				// nothing more can be read
+			}
+		}
+
+		@Override
+		public int compareTo(RunReader that) {
+			int result = this.key.compareTo(that.key);
+			if (result != 0) {
+				return result;
+			}
+
+			// newer runs win
+			return that.order - this.order;
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package org.duelengine.merge;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the loaded contents of a published manifest (e.g. cdn.properties),
+ * reloading whenever a build replaces the file. Readers never block:
+ * each reload swaps in a complete mapping with a single volatile write.
+ */
+public class ManifestWatcher {
+
+	/**
+	 * Notified after a new version of the manifest has been loaded
+	 */
+	public interface Listener {
+		void onReload(ManifestWatcher watcher);
+	}
+
+	private static final Logger log = LoggerFactory.getLogger(ManifestWatcher.class);
+
+	private static final String VERSION_PREFIX = "#version=";
+	private static final String CHAR_ENCODING = "UTF-8";
+
+	private static class Snapshot {
+		public final Map<String, String> mapping;
+		public final String version;
+
+		public Snapshot(Map<String, String> mapping, String version) {
+			this.mapping = mapping;
+			this.version = version;
+		}
+	}
+
+	private final File manifest;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private volatile Snapshot current;
+	private WatchService watcher;
+	private Thread thread;
+
+	/**
+	 * @param manifest the manifest file, which must already exist
+	 * @throws IOException
+	 */
+	public ManifestWatcher(File manifest)
+			throws IOException {
+
+		if (manifest == null) {
+			throw new NullPointerException("manifest");
+		}
+
+		this.manifest = manifest.getAbsoluteFile();
+		this.current = load(this.manifest);
+	}
+
+	/**
+	 * @param path the source path
+	 * @return the mapped value, or null if not in the manifest
+	 */
+	public String get(String path) {
+		return current.mapping.get(path);
+	}
+
+	/**
+	 * @return an unmodifiable view of the current mapping
+	 */
+	public Map<String, String> getMapping() {
+		return current.mapping;
+	}
+
+	/**
+	 * @return the version stamp of the current mapping, or null if unstamped
+	 */
+	public String getVersion() {
+		return current.version;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Re-reads the manifest if its version has changed.
+	 * Concurrent reloads are serialized so an older read never replaces a newer one.
+	 * @return true if a new version was loaded
+	 * @throws IOException
+	 */
+	public synchronized boolean reload()
+			throws IOException {
+
+		Snapshot next = load(manifest);
+		Snapshot previous = current;
+		if (next.version != null && next.version.equals(previous.version) && next.mapping.equals(previous.mapping)) {
+			return false;
+		}
+
+		current = next;
+		for (Listener listener : listeners) {
+			listener.onReload(this);
+		}
+		return true;
+	}
+
+	/**
+	 * Begins watching the manifest directory on a daemon thread
+	 * @throws IOException
+	 */
+	public synchronized void start()
+			throws IOException {
+
+		if (thread != null) {
+			return;
+		}
+
+		final Path dir = manifest.getParentFile().toPath();
+		final WatchService service = FileSystems.getDefault().newWatchService();
+		// manifests are published by rename so appear as newly created
+		dir.register(service,
+			StandardWatchEventKinds.ENTRY_CREATE,
+			StandardWatchEventKinds.ENTRY_MODIFY);
+
+		watcher = service;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watch(service);
+			}
+		}, "ManifestWatcher-"+manifest.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops watching the manifest
+	 * @throws IOException
+	 */
+	public synchronized void close()
+			throws IOException {
+
+		if (watcher != null) {
+			watcher.close();
+			watcher = null;
+			thread = null;
+		}
+	}
+
+	private void watch(WatchService service) {
+		String name = manifest.getName();
+		try {
+			while (true) {
+				WatchKey key = service.take();
+				boolean changed = false;
+				for (WatchEvent<?> event : key.pollEvents()) {
+					Object context = event.context();
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW ||
+						(context instanceof Path && name.equals(((Path)context).getFileName().toString()))) {
+						changed = true;
+					}
+				}
+
+				if (changed) {
+					try {
+						if (reload()) {
+							log.info("Reloaded "+manifest+" version "+getVersion());
+						}
+
+					} catch (IOException ex) {
+						// keep serving the previous mapping
+						log.warn("Unable to reload "+manifest, ex);
+					}
+				}
+
+				if (!key.reset()) {
+					log.warn("Stopped watching "+manifest.getParent());
+					return;
+				}
+			}
+
+		} catch (ClosedWatchServiceException ex) {
+			// closed
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static Snapshot load(File manifest)
+			throws IOException {
+
+		// read once to EOF so the stamp and the mapping come from the same version,
+		// whatever the length was before a build replaced the file
+		byte[] bytes = Files.readAllBytes(manifest.toPath());
+		int length = bytes.length;
+
+		String version = null;
+		String header = new String(bytes, 0, Math.min(length, 64), "ISO-8859-1");
+		if (header.startsWith(VERSION_PREFIX)) {
+			int end = VERSION_PREFIX.length();
+			while (end < header.length() && header.charAt(end) != '\r' && header.charAt(end) != '\n') {
+				end++;
+			}
+			version = header.substring(VERSION_PREFIX.length(), end);
+		}
+
+		Properties properties = new Properties();
+		properties.load(new InputStreamReader(new ByteArrayInputStream(bytes, 0, length), CHAR_ENCODING));
+
+		Map<String, String> mapping = new HashMap<String, String>(properties.size()*4/3+1);
+		for (String key : properties.stringPropertyNames()) {
+			mapping.put(key, properties.getProperty(key));
+		}
+
+		return new Snapshot(Collections.unmodifiableMap(mapping), version);
+	}
+}
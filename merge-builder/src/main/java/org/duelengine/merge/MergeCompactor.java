@@ -11,10 +11,40 @@ class MergeCompactor implements Compactor {
 
 	private static final int BUFFER_SIZE = 4096;
 	private static final String CHAR_ENCODING = "UTF-8";
-	private static final String EXT = ".merge";
+	static final String EXT = ".merge";
+	private static final char CHUNK_DELIM = '#';
+	private static final String DEBUG_DIR = "debug/";
 	private final Logger log = LoggerFactory.getLogger(MergeCompactor.class);
 	private final Map<String, PlaceholderGenerator> placeholders;
 
+	/**
+	 * Registers the merge file compactor with JS and CSS placeholders
+	 */
+	public static class Provider implements CompactorProvider {
+
+		@Override
+		public String getName() {
+			return "merge";
+		}
+
+		@Override
+		public String[] getSourceExtensions(Settings settings) {
+			return new String[] { EXT };
+		}
+
+		@Override
+		public boolean isIsolated() {
+			return false;
+		}
+
+		@Override
+		public Compactor create(Settings settings) {
+			return new MergeCompactor(
+				new JSPlaceholderGenerator(),
+				new CSSPlaceholderGenerator());
+		}
+	}
+
 	public MergeCompactor(PlaceholderGenerator... placeholders) {
 		if (placeholders == null) {
 			throw new NullPointerException("placeholders");
@@ -52,36 +82,79 @@ class MergeCompactor implements Compactor {
 	public void calcHash(BuildManager manager, MessageDigest hash, String path, File source)
 			throws IOException, NoSuchAlgorithmException {
 
-		BufferedReader reader = new BufferedReader(new FileReader(source));
-		try {
+		// calculate the hash for the merge file as a hash of the dependency hash paths
+		// if any of the dependencies change this hash will also
 
-			// calculate the hash for the merge file as a hash of the dependency hash paths
-			// if any of the dependencies change this hash will also
+		for (String dependency : readMembers(source)) {
+			manager.ensureProcessed(dependency);
 
-			String dependency;
-			while ((dependency = reader.readLine()) != null) {
-				dependency = dependency.trim();
-				if (dependency.isEmpty() || dependency.startsWith("#")) {
-					// skip empty lines and comments
-					continue;
-				}
+			String dependencyPath = manager.getProcessedPath(dependency);
+			if (dependencyPath == null) {
+				// skip missing resources (will be reflected in hash when come available)
+				log.warn("Missing merge reference: "+dependency);
+				continue;
+			}
+
+			manager.addDependency(path, dependency);
+			hash.update(dependencyPath.getBytes(CHAR_ENCODING));
+		}
 
-				manager.ensureProcessed(dependency);
+		int limit = manager.getSettings().getBundleLimit();
+		if (limit > 0) {
+			// chunk boundaries change the output
+			hash.update(("bundle:"+limit).getBytes(CHAR_ENCODING));
+		}
+		for (CommonChunkPlan.Segment segment : getSharedSegments(manager, path)) {
+			// shared boundaries depend upon other merge files
+			hash.update(("common:"+segment.getSize()).getBytes(CHAR_ENCODING));
+		}
+		if (isDedupe(manager, path)) {
+			hash.update("dedupe".getBytes(CHAR_ENCODING));
+		}
+		if (manager.getSettings().isAsyncPlaceholders()) {
+			// debug placeholders differ
+			hash.update("async".getBytes(CHAR_ENCODING));
+		}
+	}
 
-				String dependencyPath = manager.getProcessedPath(dependency);
-				if (dependencyPath == null) {
-					// skip missing resources (will be reflected in hash when come available)
-					log.warn("Missing merge reference: "+dependency);
+	/**
+	 * Reads the member paths listed by a merge file, skipping empty lines and comments
+	 * @param source
+	 * @return
+	 * @throws IOException
+	 */
+	static List<String> readMembers(File source)
+			throws IOException {
+
+		List<String> members = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(source));
+		try {
+			String member;
+			while ((member = reader.readLine()) != null) {
+				member = member.trim();
+				if (member.isEmpty() || member.startsWith("#")) {
 					continue;
 				}
-
-				manager.addDependency(path, dependency);
-				hash.update(dependencyPath.getBytes(CHAR_ENCODING));
+				members.add(member);
 			}
 
 		} finally {
 			reader.close();
 		}
+		return members;
+	}
+
+	/**
+	 * @param manager
+	 * @param path
+	 * @return the leading members shared with other merge files, if extracting common chunks
+	 */
+	private static List<CommonChunkPlan.Segment> getSharedSegments(BuildManager manager, String path) {
+		CommonChunkPlan plan = manager.getCommonChunkPlan();
+		if (plan == null) {
+			return Collections.emptyList();
+		}
+		return plan.getSegments(flatten(manager, manager.getDependencies(path)));
 	}
 
 	@Override
@@ -95,17 +168,26 @@ class MergeCompactor implements Compactor {
 	private void buildMerge(BuildManager manager, String path, File target)
 		throws FileNotFoundException, IOException {
 		
-		log.info("Building "+path);
+		log.info("Building {}", path);
 		String outputPath = manager.getProcessedPath(path);
 
+		int limit = manager.getSettings().getBundleLimit();
+		List<CommonChunkPlan.Segment> shared = getSharedSegments(manager, path);
+		if (!shared.isEmpty() || (limit > 0 && getBundleSize(manager, path) > limit)) {
+			// chunks are listed in the map even when unchanged
+			this.buildChunks(manager, path, target, shared, limit);
+			return;
+		}
+
 		if (manager.isProcessed(path) && target.exists()) {
-			log.info("- exists: "+outputPath);
+			log.info("- exists: {}", outputPath);
 			return;
 		}
-		log.info("- writing to "+outputPath);
+		log.info("- writing to {}", outputPath);
 
 		target.getParentFile().mkdirs();
-		FileWriter writer = new FileWriter(target, false);
+		boolean dedupe = isDedupe(manager, path);
+		Writer writer = dedupe ? new StringWriter() : new FileWriter(target, false);
 
 		try {
 			final char[] buffer = new char[BUFFER_SIZE];
@@ -113,7 +195,7 @@ class MergeCompactor implements Compactor {
 			// concatenate children
 			for (String child : manager.getDependencies(path)) {
 				// insert child files into outputFile
-				log.info("- adding "+child);
+				log.info("- adding {}", child);
 				File source = manager.getTargetFile(child);
 				FileReader reader = new FileReader(source);
 				try {
@@ -130,6 +212,178 @@ class MergeCompactor implements Compactor {
 			writer.flush();
 			writer.close();
 		}
+
+		if (dedupe) {
+			String css = writer.toString();
+			String deduped = CssRuleDeduper.dedupe(css);
+			log.info("- deduplicated rules: {} => {} chars", css.length(), deduped.length());
+
+			writer = new FileWriter(target, false);
+			try {
+				writer.write(deduped);
+
+			} finally {
+				writer.flush();
+				writer.close();
+			}
+		}
+	}
+
+	/**
+	 * Determines if duplicate rules are removed from a merged stylesheet
+	 */
+	private boolean isDedupe(BuildManager manager, String path) {
+		return manager.getSettings().isDedupeCss() &&
+			CSSCompactor.CSS_EXT.equals(getTargetExtension(manager, path));
+	}
+
+	private static long getBundleSize(BuildManager manager, String path) {
+		long size = 0L;
+		for (String child : manager.getDependencies(path)) {
+			size += manager.getTargetFile(child).length();
+		}
+		return size;
+	}
+
+	/**
+	 * Splits the merged output into ordered chunks which stay within the size budget
+	 * wherever possible, as members are never divided. Members shared with other merge
+	 * files lead as common chunks. The merge output becomes a loader which fetches
+	 * the chunks in parallel but executes them in order.
+	 * @param manager
+	 * @param path
+	 * @param target
+	 * @param shared leading segments shared with other merge files
+	 * @param limit zero if unbounded
+	 * @throws IOException
+	 */
+	private void buildChunks(BuildManager manager, String path, File target, List<CommonChunkPlan.Segment> shared, int limit)
+		throws IOException {
+
+		String targetExt = BuildManager.getExtension(target.getName());
+		PlaceholderGenerator generator = this.placeholders.get(targetExt);
+		if (generator == null) {
+			log.warn("No chunk loader generator found for "+targetExt);
+			return;
+		}
+
+		List<String> urls = new ArrayList<String>();
+		List<String> members = manager.getDependencies(path);
+
+		if (!shared.isEmpty()) {
+			members = flatten(manager, members);
+			int start = 0;
+			for (CommonChunkPlan.Segment segment : shared) {
+				urls.add(writeShared(manager, path, target, segment, members.subList(start, start+segment.getSize())));
+				start += segment.getSize();
+			}
+			members = members.subList(start, members.size());
+		}
+
+		ByteArrayOutputStream chunk = new ByteArrayOutputStream((limit > 0) ? limit : BUFFER_SIZE);
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		int chunks = 0;
+
+		for (String child : members) {
+			File source = manager.getTargetFile(child);
+			if (limit > 0 && chunk.size() > 0 && chunk.size()+source.length() > limit) {
+				urls.add(writeChunk(manager, path, target, ++chunks, chunk.toByteArray()));
+				chunk.reset();
+			}
+
+			log.info("- adding {}", child);
+			append(chunk, source, buffer);
+		}
+
+		if (chunk.size() > 0) {
+			urls.add(writeChunk(manager, path, target, ++chunks, chunk.toByteArray()));
+		}
+
+		log.info("- writing loader for {} chunks", urls.size());
+		generator.buildLoader(manager, target, urls);
+	}
+
+	private static void append(ByteArrayOutputStream chunk, File source, byte[] buffer)
+		throws IOException {
+
+		FileInputStream stream = new FileInputStream(source);
+		try {
+			int count;
+			while ((count = stream.read(buffer)) > 0) {
+				chunk.write(buffer, 0, count);
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Writes a content-hashed common chunk once per build, listed in the map under
+	 * its segment key and as a child link of each merge file which shares it
+	 * @return the URL of the chunk relative to the loader
+	 */
+	private String writeShared(BuildManager manager, String path, File target, CommonChunkPlan.Segment segment, List<String> members)
+		throws IOException {
+
+		String key = segment.getKey();
+		String hashPath = manager.getProcessedPath(key);
+		if (hashPath == null) {
+			ByteArrayOutputStream chunk = new ByteArrayOutputStream(BUFFER_SIZE);
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			for (String member : members) {
+				log.info("- sharing {}", member);
+				append(chunk, manager.getTargetFile(member), buffer);
+			}
+
+			try {
+				hashPath = manager.writeGeneratedResource(key, chunk.toByteArray(), BuildManager.getExtension(target.getName()));
+
+			} catch (NoSuchAlgorithmException ex) {
+				throw new IOException(ex);
+			}
+		}
+		manager.addChildLink(path, key);
+
+		return manager.getSettings().getRelativeHashPath(hashPath);
+	}
+
+	/**
+	 * Writes a content-hashed chunk, listed in the map as "path#index" and as a child link of the merge file
+	 * @return the URL of the chunk relative to the loader
+	 */
+	private static String writeChunk(BuildManager manager, String path, File target, int index, byte[] content)
+		throws IOException {
+
+		String chunkPath = path+CHUNK_DELIM+index;
+		String hashPath;
+		try {
+			hashPath = manager.writeGeneratedResource(chunkPath, content, BuildManager.getExtension(target.getName()));
+
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IOException(ex);
+		}
+		manager.addChildLink(path, chunkPath);
+
+		return manager.getSettings().getRelativeHashPath(hashPath);
+	}
+
+	/**
+	 * Replaces nested merge files with their members, so that loaders
+	 * which run in parallel need not wait on nested placeholders
+	 * @param manager
+	 * @param children
+	 * @return
+	 */
+	static List<String> flatten(BuildManager manager, List<String> children) {
+		List<String> flattened = new ArrayList<String>(children.size());
+		for (String child : children) {
+			if (EXT.equalsIgnoreCase(BuildManager.getExtension(child))) {
+				flattened.addAll(flatten(manager, manager.getDependencies(child)));
+			} else {
+				flattened.add(child);
+			}
+		}
+		return flattened;
 	}
 
 	private void buildDebugPlaceholders(BuildManager manager, String path)
@@ -145,9 +399,15 @@ class MergeCompactor implements Compactor {
 			return;
 		}
 
-		// splice in the debug directory
-		int slash = hashPath.lastIndexOf('/');
-		String debugPath = hashPath.substring(0, slash)+"/debug"+hashPath.substring(slash);
+		// splice in the debug directory, above any shards
+		String cdnRoot = manager.getSettings().getCDNRoot();
+		String debugPath;
+		if (hashPath.startsWith(cdnRoot)) {
+			debugPath = cdnRoot+DEBUG_DIR+hashPath.substring(cdnRoot.length());
+		} else {
+			int slash = hashPath.lastIndexOf('/');
+			debugPath = hashPath.substring(0, slash+1)+DEBUG_DIR+hashPath.substring(slash+1);
+		}
 		manager.setProcessedPath(hashPath, debugPath);
 
 		for (String dependency : dependencies) {
@@ -0,0 +1,54 @@
+package org.duelengine.merge;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps CDN file extensions to their content types
+ */
+final class MimeTypes {
+
+	private static final Map<String, String> types = new HashMap<String, String>();
+
+	static {
+		types.put(".html", "text/html");
+		types.put(".htm", "text/html");
+		types.put(".txt", "text/plain");
+		types.put(".json", "application/json");
+		types.put(".properties", "text/plain");
+		types.put(".css", "text/css");
+		types.put(".js", "application/javascript");
+		types.put(".png", "image/png");
+		types.put(".jpg", "image/jpeg");
+		types.put(".jpeg", "image/jpeg");
+		types.put(".gif", "image/gif");
+		types.put(".ico", "image/x-icon");
+		types.put(".svg", "image/svg+xml");
+		types.put(".ttf", "font/ttf");
+		types.put(".otf", "font/otf");
+		types.put(".woff", "font/woff");
+		types.put(".woff2", "font/woff2");
+		types.put(".eot", "application/vnd.ms-fontobject");
+	}
+
+	private MimeTypes() {}
+
+	/**
+	 * @param path
+	 * @return null if the type is unknown
+	 */
+	public static String get(String path) {
+		return types.get(BuildManager.getExtension(path));
+	}
+
+	/**
+	 * Determines if the path is an image or font, the only types safe to embed as "data:" URIs
+	 * @param path
+	 * @return false for markup, stylesheets, scripts and unknown types
+	 */
+	public static boolean isEmbeddable(String path) {
+		String type = get(path);
+		return type != null && (type.startsWith("image/") || type.startsWith("font/") ||
+			"application/vnd.ms-fontobject".equals(type));
+	}
+}
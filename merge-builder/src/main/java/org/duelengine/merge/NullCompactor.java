@@ -1,20 +1,45 @@
 package org.duelengine.merge;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 /**
- * Very basic "compactor" which simply copies the bits from source to target
+ * Very basic "compactor" which simply copies the bits from source to target.
+ * Holds no per-file state so may be used from multiple threads.
  */
-class NullCompactor implements Compactor {
+class NullCompactor implements IsolatedCompactor, ResourceCompactor {
 
-	private static final int BUFFER_SIZE = 4096;
 	private final String[] extensions;
-	private byte[] buffer;
+
+	/**
+	 * Copies every configured CDN file type which no other compactor claims
+	 */
+	public static class Provider implements CompactorProvider {
+
+		@Override
+		public String getName() {
+			return "null";
+		}
+
+		@Override
+		public String[] getSourceExtensions(Settings settings) {
+			String[] extensions = settings.getExtensions();
+			return (extensions != null) ? extensions : new String[0];
+		}
+
+		@Override
+		public boolean isIsolated() {
+			return true;
+		}
+
+		@Override
+		public Compactor create(Settings settings) {
+			return new NullCompactor(settings.getExtensions());
+		}
+	}
 
 	public NullCompactor(String... extensions) {
 		this.extensions = (extensions != null) ? extensions : new String[0];
@@ -31,48 +56,40 @@ class NullCompactor implements Compactor {
 	}
 
 	@Override
-	public void calcHash(BuildManager manager, MessageDigest hash, String path, File source)
+	public final void calcHash(BuildManager manager, MessageDigest hash, String path, File source)
 			throws IOException, NoSuchAlgorithmException {
 
-		if (buffer == null) {
-			buffer = new byte[BUFFER_SIZE];
-		}
+		calcHash(manager, hash, new Resource(path, source));
+	}
 
-		FileInputStream stream = new FileInputStream(source);
-		try {
-			int count;
-			while ((count = stream.read(buffer)) > 0) {
-				hash.update(buffer, 0, count);
-			}
+	@Override
+	public void calcHash(BuildManager manager, MessageDigest hash, Resource resource)
+			throws IOException, NoSuchAlgorithmException {
 
-		} finally {
-			stream.close();
-		}
+		hash.update(resource.getContent());
 	}
 
 	@Override
-	public void compact(BuildManager manager, String path, File source, File target)
+	public final void compact(BuildManager manager, String path, File source, File target)
 			throws IOException {
 
-		if (buffer == null) {
-			buffer = new byte[BUFFER_SIZE];
-		}
+		compact(manager, new Resource(path, source), target);
+	}
+
+	@Override
+	public void compact(BuildManager manager, Resource resource, File target)
+			throws IOException {
 
 		// ensure parent path exists
 		target.getParentFile().mkdirs();
 
-		FileInputStream inStream = new FileInputStream(source);
 		FileOutputStream outStream = new FileOutputStream(target);
 		try {
-			int count;
-			while ((count = inStream.read(buffer)) > 0) {
-				outStream.write(buffer, 0, count);
-			}
+			resource.writeTo(outStream);
 
 		} finally {
 			outStream.flush();
 			outStream.close();
-			inStream.close();
 		}
 	}
 }
@@ -0,0 +1,290 @@
+package org.duelengine.merge;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams build outputs into a single ZIP/JAR or (optionally gzipped) tar archive
+ * as each is written, rather than re-reading the output directory afterwards.
+ * The archive replaces its target only once committed.
+ */
+class OutputArchive {
+
+	private static final int BUFFER_SIZE = 4096;
+	private static final int BLOCK_SIZE = 512;
+	private static final String TEMP_EXT = ".tmp";
+
+	// deflating these again only costs time
+	private static final Set<String> COMPRESSED_EXTS = new HashSet<String>(Arrays.asList(
+		".gz", ".png", ".gif", ".jpg", ".jpeg", ".webp", ".woff", ".woff2", ".zip"));
+
+	private final File file;
+	private final File temp;
+	private final OutputStream stream;
+	private final ZipOutputStream zip;
+	private final int level;
+	private final Set<String> names = new HashSet<String>();
+	private long remaining;
+	private long entrySize;
+	private boolean closed;
+
+	/**
+	 * @param file the archive, formatted by its extension: .zip, .jar, .tar, .tar.gz or .tgz
+	 * @param level deflate level of compressible entries
+	 * @throws IOException
+	 */
+	public OutputArchive(File file, int level)
+			throws IOException {
+
+		if (file == null) {
+			throw new NullPointerException("file");
+		}
+
+		String name = file.getName().toLowerCase();
+		boolean isZip = name.endsWith(".zip") || name.endsWith(".jar");
+		boolean isTar = name.endsWith(".tar");
+		boolean isTarGz = name.endsWith(".tar.gz") || name.endsWith(".tgz");
+		if (!isZip && !isTar && !isTarGz) {
+			throw new IllegalArgumentException("Unsupported archive type: "+file.getName());
+		}
+
+		this.file = file.getAbsoluteFile();
+		this.file.getParentFile().mkdirs();
+		this.temp = File.createTempFile(file.getName(), TEMP_EXT, this.file.getParentFile());
+		this.level = (level > 0) ? level : Deflater.DEFAULT_COMPRESSION;
+
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE*16);
+		if (isTarGz) {
+			final int gzipLevel = this.level;
+			output = new GZIPOutputStream(output, BUFFER_SIZE) {
+				{
+					def.setLevel(gzipLevel);
+				}
+			};
+		}
+
+		this.zip = isZip ? new ZipOutputStream(output) : null;
+		this.stream = isZip ? zip : output;
+	}
+
+	/**
+	 * @param name
+	 * @return true if the entry has already been added
+	 */
+	public synchronized boolean contains(String name) {
+		return names.contains(name);
+	}
+
+	/**
+	 * Starts an entry whose content follows via {@link #write(byte[], int, int)}
+	 * @param name entry path
+	 * @param size exact content length
+	 * @param time last modified time
+	 * @return false if the entry was already added and should be skipped
+	 * @throws IOException
+	 */
+	public synchronized boolean begin(String name, long size, long time)
+			throws IOException {
+
+		if (!names.add(name)) {
+			return false;
+		}
+
+		remaining = entrySize = size;
+		if (zip != null) {
+			zip.setLevel(COMPRESSED_EXTS.contains(BuildManager.getExtension(name)) ? Deflater.NO_COMPRESSION : level);
+			ZipEntry entry = new ZipEntry(name);
+			entry.setTime(time);
+			zip.putNextEntry(entry);
+
+		} else {
+			stream.write(tarHeader(name, size, time));
+		}
+		return true;
+	}
+
+	public synchronized void write(byte[] buffer, int offset, int count)
+			throws IOException {
+
+		stream.write(buffer, offset, count);
+		remaining -= count;
+	}
+
+	/**
+	 * Completes the current entry
+	 * @throws IOException
+	 */
+	public synchronized void end()
+			throws IOException {
+
+		if (remaining != 0L) {
+			// tar headers have already declared the size
+			throw new IOException("Archive entry changed size while being written");
+		}
+
+		if (zip != null) {
+			zip.closeEntry();
+
+		} else {
+			int padding = (int)((BLOCK_SIZE - entrySize % BLOCK_SIZE) % BLOCK_SIZE);
+			stream.write(new byte[padding]);
+		}
+	}
+
+	/**
+	 * Adds a file unless the entry already exists
+	 * @param name entry path
+	 * @param source
+	 * @throws IOException
+	 */
+	public synchronized void add(String name, File source)
+			throws IOException {
+
+		if (!begin(name, source.length(), source.lastModified())) {
+			return;
+		}
+
+		byte[] buffer = new byte[BUFFER_SIZE];
+		FileInputStream input = new FileInputStream(source);
+		try {
+			int count;
+			while ((count = input.read(buffer)) > 0) {
+				write(buffer, 0, count);
+			}
+
+		} finally {
+			input.close();
+		}
+		end();
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public synchronized int size() {
+		return names.size();
+	}
+
+	/**
+	 * Writes the archive index and replaces the target
+	 * @throws IOException
+	 */
+	public synchronized void commit()
+			throws IOException {
+
+		if (zip != null) {
+			// central directory
+			zip.finish();
+
+		} else {
+			// end of archive marker
+			stream.write(new byte[BLOCK_SIZE*2]);
+		}
+		stream.flush();
+		stream.close();
+		closed = true;
+
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Discards the archive unless already committed
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		try {
+			stream.close();
+
+		} catch (IOException ex) {
+			// discarded anyway
+		}
+		temp.delete();
+	}
+
+	/**
+	 * Builds a POSIX ustar header block
+	 */
+	private static byte[] tarHeader(String name, long size, long time)
+			throws IOException {
+
+		String prefix = "";
+		if (name.length() > 100) {
+			int slash = name.lastIndexOf('/', 155);
+			if (slash < 0 || name.length()-slash-1 > 100) {
+				throw new IOException("Path too long for tar archive: "+name);
+			}
+			prefix = name.substring(0, slash);
+			name = name.substring(slash+1);
+		}
+
+		byte[] header = new byte[BLOCK_SIZE];
+		putString(header, 0, 100, name);
+		putOctal(header, 100, 8, 0644);
+		putOctal(header, 108, 8, 0);
+		putOctal(header, 116, 8, 0);
+		putOctal(header, 124, 12, size);
+		putOctal(header, 136, 12, time/1000L);
+		Arrays.fill(header, 148, 156, (byte)' ');
+		header[156] = '0';
+		putString(header, 257, 6, "ustar");
+		putString(header, 263, 2, "00");
+		putString(header, 345, 155, prefix);
+
+		long checksum = 0L;
+		for (byte b : header) {
+			checksum += b & 0xFF;
+		}
+		putOctal(header, 148, 7, checksum);
+		return header;
+	}
+
+	private static void putString(byte[] header, int offset, int length, String value)
+			throws IOException {
+
+		byte[] bytes = value.getBytes("UTF-8");
+		if (bytes.length > length) {
+			throw new IOException("Value too long for tar header: "+value);
+		}
+		System.arraycopy(bytes, 0, header, offset, bytes.length);
+	}
+
+	/**
+	 * Writes a zero-padded octal number terminated by NUL
+	 */
+	private static void putOctal(byte[] header, int offset, int length, long value)
+			throws IOException {
+
+		String octal = Long.toOctalString(value);
+		if (octal.length() > length-1) {
+			throw new IOException("Value too large for tar header: "+value);
+		}
+		while (octal.length() < length-1) {
+			octal = '0'+octal;
+		}
+		putString(header, offset, length-1, octal);
+		header[offset+length-1] = 0;
+	}
+}
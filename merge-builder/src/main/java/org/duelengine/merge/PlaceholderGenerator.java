@@ -1,7 +1,9 @@
 package org.duelengine.merge;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.List;
 
 public interface PlaceholderGenerator {
@@ -20,4 +22,30 @@ public interface PlaceholderGenerator {
 	 * @throws IOException
 	 */
 	void build(BuildManager manager, File target, List<String> children) throws IOException;
+
+	/**
+	 * Builds a loader which fetches the chunks of a split merge file in parallel, preserving their order.
+	 * Generators without a loader fall back to concatenating the chunks, i.e., unchunked output.
+	 * @param manager
+	 * @param target output file
+	 * @param urls chunk URLs, relative to the target unless rooted
+	 * @throws IOException
+	 */
+	default void buildLoader(BuildManager manager, File target, List<String> urls) throws IOException {
+		target.getParentFile().mkdirs();
+		FileOutputStream output = new FileOutputStream(target, false);
+
+		try {
+			for (String url : urls) {
+				File chunk = url.startsWith("/") ?
+					manager.getSettings().getTargetFile(url) :
+					new File(target.getParentFile(), url);
+				Files.copy(chunk.toPath(), output);
+			}
+
+		} finally {
+			output.flush();
+			output.close();
+		}
+	}
 }
@@ -0,0 +1,160 @@
+package org.duelengine.merge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A source file which is read at most once, no matter how many times its content is
+ * requested, so hashing and compaction share the same bytes. Content is always read
+ * onto the heap as a mapping would hold the file open (and locked on Windows) until collected.
+ */
+public final class Resource {
+
+	private final String path;
+	private final File source;
+	private byte[] bytes;
+	private ByteBuffer content;
+
+	/**
+	 * @param path URL path
+	 * @param source input file
+	 */
+	public Resource(String path, File source) {
+		this.path = path;
+		this.source = source;
+	}
+
+	/**
+	 * @return URL path
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return input file, for compilers which must read it themselves
+	 */
+	public File getFile() {
+		return source;
+	}
+
+	/**
+	 * @return the length in bytes, without reading the content
+	 */
+	public synchronized long getLength() {
+		return (content != null) ? content.limit() : source.length();
+	}
+
+	/**
+	 * @return a read-only view of the content, positioned at the start
+	 * @throws IOException
+	 */
+	public synchronized ByteBuffer getContent()
+			throws IOException {
+
+		if (content == null) {
+			FileInputStream stream = new FileInputStream(source);
+			try {
+				bytes = readAll(stream, (int)stream.getChannel().size());
+				content = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+
+			} finally {
+				stream.close();
+			}
+		}
+
+		// each caller gets its own position
+		return content.duplicate();
+	}
+
+	/**
+	 * @return the content as an array which must not be modified
+	 * @throws IOException
+	 */
+	public synchronized byte[] getBytes()
+			throws IOException {
+
+		getContent();
+		return bytes;
+	}
+
+	/**
+	 * @param charset
+	 * @return the content decoded as text
+	 * @throws IOException
+	 */
+	public String getText(String charset)
+			throws IOException {
+
+		return Charset.forName(charset).decode(getContent()).toString();
+	}
+
+	/**
+	 * @return a stream over the content
+	 * @throws IOException
+	 */
+	public InputStream openStream()
+			throws IOException {
+
+		final ByteBuffer buffer = getContent();
+		return new InputStream() {
+			@Override
+			public int read() {
+				return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if (!buffer.hasRemaining()) {
+					return -1;
+				}
+				len = Math.min(len, buffer.remaining());
+				buffer.get(b, off, len);
+				return len;
+			}
+
+			@Override
+			public int available() {
+				return buffer.remaining();
+			}
+		};
+	}
+
+	/**
+	 * Writes the content to a stream
+	 * @param stream
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream stream)
+			throws IOException {
+
+		ByteBuffer buffer = getContent();
+		WritableByteChannel channel = Channels.newChannel(stream);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static byte[] readAll(InputStream stream, int length)
+			throws IOException {
+
+		byte[] buffer = new byte[length];
+		int offset = 0, count;
+		while (offset < length && (count = stream.read(buffer, offset, length-offset)) > 0) {
+			offset += count;
+		}
+		if (offset < length) {
+			byte[] truncated = new byte[offset];
+			System.arraycopy(buffer, 0, truncated, 0, offset);
+			return truncated;
+		}
+		return buffer;
+	}
+}
@@ -0,0 +1,34 @@
+package org.duelengine.merge;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Compactor which receives each source as a {@link Resource} so that hashing and
+ * compaction share a single read. Compactors which only implement {@link Compactor}
+ * continue to work through an adapter which hands them the underlying file.
+ */
+public interface ResourceCompactor extends Compactor {
+
+	/**
+	 * Generate hash for the specified resource
+	 * @param manager
+	 * @param hash
+	 * @param resource
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	void calcHash(BuildManager manager, MessageDigest hash, Resource resource)
+			throws IOException, NoSuchAlgorithmException;
+
+	/**
+	 * Perform compaction
+	 * @param manager
+	 * @param resource input
+	 * @param target output file
+	 */
+	void compact(BuildManager manager, Resource resource, File target)
+			throws IOException;
+}
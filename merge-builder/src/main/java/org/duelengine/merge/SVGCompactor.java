@@ -0,0 +1,320 @@
+package org.duelengine.merge;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minifies SVG markup: strips comments, metadata and editor data,
+ * collapses whitespace and shortens numbers in geometry attributes.
+ */
+class SVGCompactor extends NullCompactor {
+
+	private static final String CHAR_ENCODING = "UTF-8";
+	private static final String SVG_EXT = ".svg";
+
+	// elements whose text content is significant
+	private static final Set<String> PRESERVE_SPACE = new HashSet<String>(Arrays.asList(
+		"text", "tspan", "textPath", "title", "desc", "style", "script"));
+
+	// attributes which only hold numbers, lengths and path data
+	private static final Set<String> NUMERIC_ATTRS = new HashSet<String>(Arrays.asList(
+		"d", "points", "transform", "gradientTransform", "patternTransform", "viewBox",
+		"x", "y", "x1", "y1", "x2", "y2", "cx", "cy", "r", "rx", "ry", "fx", "fy", "width", "height",
+		"offset", "opacity", "fill-opacity", "stroke-opacity", "stop-opacity",
+		"stroke-width", "stroke-miterlimit", "stroke-dasharray", "stroke-dashoffset"));
+
+	private static final Pattern ATTR = Pattern.compile("([^\\s=/>]+)\\s*=\\s*(\"[^\"]*\"|'[^']*')");
+	private static final Pattern NUMBER = Pattern.compile("-?\\d*\\.?\\d+(?:[eE][-+]?\\d+)?");
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+	/**
+	 * Registers ".svg" if among the configured CDN file extensions
+	 */
+	public static class Provider implements CompactorProvider {
+
+		@Override
+		public String getName() {
+			return "svg";
+		}
+
+		@Override
+		public String[] getSourceExtensions(Settings settings) {
+			return isConfigured(settings.getExtensions()) ? new String[] { SVG_EXT } : new String[0];
+		}
+
+		@Override
+		public boolean isIsolated() {
+			return true;
+		}
+
+		@Override
+		public Compactor create(Settings settings) {
+			return new SVGCompactor(settings.getExtensions());
+		}
+	}
+
+	/**
+	 * @param extensions the configured CDN file extensions, only ".svg" is registered
+	 */
+	public SVGCompactor(String... extensions) {
+		super(isConfigured(extensions) ? new String[] { SVG_EXT } : new String[0]);
+	}
+
+	private static boolean isConfigured(String... extensions) {
+		if (extensions != null) {
+			for (String ext : extensions) {
+				if (SVG_EXT.equalsIgnoreCase(ext)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void compact(BuildManager manager, Resource resource, File target)
+			throws IOException {
+
+		String svg = minify(resource.getText(CHAR_ENCODING));
+
+		// ensure parent path exists
+		target.getParentFile().mkdirs();
+
+		Writer writer = new OutputStreamWriter(new FileOutputStream(target), CHAR_ENCODING);
+		try {
+			writer.write(svg);
+
+		} finally {
+			writer.flush();
+			writer.close();
+		}
+	}
+
+	static String minify(String svg) {
+		StringBuilder output = new StringBuilder(svg.length());
+		int length = svg.length();
+		int preserve = 0;
+		int skipDepth = 0;
+
+		int i = 0;
+		while (i < length) {
+			char ch = svg.charAt(i);
+
+			if (ch != '<') {
+				int end = svg.indexOf('<', i);
+				if (end < 0) {
+					end = length;
+				}
+				if (skipDepth == 0) {
+					String text = svg.substring(i, end);
+					if (preserve > 0) {
+						output.append(text);
+					} else if (!text.trim().isEmpty()) {
+						output.append(WHITESPACE.matcher(text).replaceAll(" "));
+					}
+				}
+				i = end;
+				continue;
+			}
+
+			if (svg.startsWith("<!--", i)) {
+				i = skipPast(svg, i, "-->");
+				continue;
+			}
+
+			if (svg.startsWith("<![CDATA[", i)) {
+				int end = skipPast(svg, i, "]]>");
+				if (skipDepth == 0) {
+					output.append(svg, i, end);
+				}
+				i = end;
+				continue;
+			}
+
+			if (svg.startsWith("<?", i)) {
+				// keep declaration and processing instructions
+				int end = skipPast(svg, i, "?>");
+				if (skipDepth == 0) {
+					output.append(svg, i, end);
+				}
+				i = end;
+				continue;
+			}
+
+			if (svg.startsWith("<!", i)) {
+				// DOCTYPE is only kept when it declares entities
+				int subset = svg.indexOf('[', i);
+				int close = svg.indexOf('>', i);
+				if (subset >= 0 && close >= 0 && subset < close) {
+					int end = skipPast(svg, subset, "]>");
+					output.append(svg, i, end);
+					i = end;
+				} else {
+					i = (close < 0) ? length : close+1;
+				}
+				continue;
+			}
+
+			int end = findTagEnd(svg, i);
+			String tag = svg.substring(i, end);
+			i = end;
+
+			boolean closing = tag.startsWith("</");
+			boolean selfClosing = tag.endsWith("/>");
+			String name = getTagName(tag);
+
+			if (skipDepth > 0) {
+				if (closing) {
+					skipDepth--;
+				} else if (!selfClosing) {
+					skipDepth++;
+				}
+				continue;
+			}
+
+			if (!closing && ("metadata".equals(name) || isEditorName(name))) {
+				if (!selfClosing) {
+					skipDepth = 1;
+				}
+				continue;
+			}
+
+			if (PRESERVE_SPACE.contains(name)) {
+				if (closing) {
+					preserve--;
+				} else if (!selfClosing) {
+					preserve++;
+				}
+			}
+
+			output.append(closing ? "</"+name+'>' : minifyTag(tag, name, selfClosing));
+		}
+
+		return output.toString().trim();
+	}
+
+	private static String minifyTag(String tag, String name, boolean selfClosing) {
+		StringBuilder output = new StringBuilder(tag.length());
+		output.append('<').append(name);
+
+		Matcher attrs = ATTR.matcher(tag);
+		while (attrs.find()) {
+			String attr = attrs.group(1);
+			if (isEditorName(attr) || (attr.startsWith("xmlns:") && isEditorName(attr.substring(6)+':'))) {
+				continue;
+			}
+
+			String value = attrs.group(2);
+			char quote = value.charAt(0);
+			value = value.substring(1, value.length()-1);
+
+			if (NUMERIC_ATTRS.contains(attr)) {
+				value = shortenNumbers(WHITESPACE.matcher(value.trim()).replaceAll(" "));
+			}
+
+			output.append(' ').append(attr).append('=').append(quote).append(value).append(quote);
+		}
+
+		return output.append(selfClosing ? "/>" : ">").toString();
+	}
+
+	/**
+	 * Drops redundant zeros, e.g., "0.50" => ".5" and "1.0" => "1"
+	 * @param value
+	 * @return
+	 */
+	static String shortenNumbers(String value) {
+		Matcher numbers = NUMBER.matcher(value);
+		StringBuffer output = new StringBuffer(value.length());
+
+		while (numbers.find()) {
+			String number = numbers.group();
+			int next = numbers.end();
+			if (number.indexOf('.') < 0 || number.indexOf('e') >= 0 || number.indexOf('E') >= 0 ||
+				(next < value.length() && (value.charAt(next) == '.' || Character.isDigit(value.charAt(next))))) {
+				// leave as is to avoid merging with following number
+				numbers.appendReplacement(output, number);
+				continue;
+			}
+
+			boolean negative = number.startsWith("-");
+			if (negative) {
+				number = number.substring(1);
+			}
+
+			// trailing fractional zeros
+			int end = number.length();
+			while (number.charAt(end-1) == '0') {
+				end--;
+			}
+			if (number.charAt(end-1) == '.') {
+				end--;
+			}
+			number = number.substring(0, end);
+
+			// leading integer zeros
+			int start = 0;
+			while (start < number.length()-1 && number.charAt(start) == '0') {
+				start++;
+			}
+			number = number.substring(start);
+
+			if (number.isEmpty() || ".".equals(number) || "0".equals(number)) {
+				number = "0";
+				negative = false;
+			}
+
+			numbers.appendReplacement(output, negative ? '-'+number : number);
+		}
+		numbers.appendTail(output);
+
+		return output.toString();
+	}
+
+	private static boolean isEditorName(String name) {
+		return name.startsWith("sodipodi:") || name.startsWith("inkscape:");
+	}
+
+	private static String getTagName(String tag) {
+		int start = tag.startsWith("</") ? 2 : 1;
+		int end = start;
+		while (end < tag.length()) {
+			char ch = tag.charAt(end);
+			if (Character.isWhitespace(ch) || ch == '>' || ch == '/') {
+				break;
+			}
+			end++;
+		}
+		return tag.substring(start, end);
+	}
+
+	private static int findTagEnd(String svg, int start) {
+		char quote = 0;
+		for (int i=start+1; i<svg.length(); i++) {
+			char ch = svg.charAt(i);
+			if (quote != 0) {
+				if (ch == quote) {
+					quote = 0;
+				}
+			} else if (ch == '"' || ch == '\'') {
+				quote = ch;
+			} else if (ch == '>') {
+				return i+1;
+			}
+		}
+		return svg.length();
+	}
+
+	private static int skipPast(String svg, int start, String token) {
+		int end = svg.indexOf(token, start);
+		return (end < 0) ? svg.length() : end+token.length();
+	}
+}
@@ -2,27 +2,76 @@ package org.duelengine.merge;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.google.javascript.jscomp.CompilationLevel;
 
 public class Settings {
 
 	private static final String[] EMPTY = new String[0];
 	private static final String DEFAULT_CDN_ROOT = "/cdn/";
+	private static final int MAX_SHARD_DEPTH = 4;
 	private static final String DEFAULT_MAP_FILE = "cdn.properties";
 	private static final String DEFAULT_LINKS_FILE = "cdnLinks.properties";
+	private static final String DEFAULT_DIFF_FILE = "cdnDiff.txt";
+	private static final String DEFAULT_INTEGRITY_FILE = "cdnIntegrity.properties";
+	private static final String DEFAULT_HASH_ALGORITHM = "SHA-1";
+	private static final String DEFAULT_JS_COMPILATION = "SIMPLE_OPTIMIZATIONS";
 
 	private File cdnMapFile;
 	private File cdnLinksFile;
+	private File cdnIntegrityFile;
+	private String integrityAlgorithm;
 	private String cdnRoot = DEFAULT_CDN_ROOT;
+	private int shardDepth;
 	private File targetDir;
 	private File sourceDir;
 	private String[] extensions;
 
+	// performance
+	private int manifestLimit;
+	private int threads = 1;
+	private File cacheDir;
+	private int cacheLimit;
+	private String[] disabledCompactors = EMPTY;
+
+	// output
+	private String hashAlgorithm = DEFAULT_HASH_ALGORITHM;
+	private int compressionLevel;
+	private File archiveFile;
+
+	// scripts
+	private String jsCompilation = DEFAULT_JS_COMPILATION;
+	private final Map<String, String> jsProfiles = new LinkedHashMap<String, String>();
+	private final Map<Pattern, String> jsProfilePatterns = new LinkedHashMap<Pattern, String>();
+
+	// stylesheets
+	private int inlineLimit;
+	private int spriteLimit;
+	private boolean flattenImports;
+	private boolean dedupeCss;
+
+	// merge files
+	private int bundleLimit;
+	private int commonChunkThreshold;
+	private boolean asyncPlaceholders;
+
+	// build diff
+	private File baselineMapFile;
+	private File baselineDir;
+	private File diffReportFile;
+	private int sizeBudget;
+	private int totalSizeBudget;
+
 	public File getCDNDir() {
 		return new File(getTargetDir(), this.cdnRoot);
 	}
@@ -69,6 +118,44 @@ public class Settings {
 		this.cdnLinksFile = new File(value);
 	}
 
+	public File getCDNIntegrityFile() {
+		if (this.cdnIntegrityFile == null) {
+			return new File(this.getTargetDir(), DEFAULT_INTEGRITY_FILE);
+		}
+
+		return this.cdnIntegrityFile;
+	}
+
+	public void setCDNIntegrityFile(String value) {
+		if (value == null || value.isEmpty()) {
+			this.cdnIntegrityFile = null;
+			return;
+		}
+
+		value = value.replace('\\', '/');
+		if (!value.startsWith("/")) {
+			value = '/'+value;
+		}
+		this.cdnIntegrityFile = new File(value);
+	}
+
+	/**
+	 * Gets the MessageDigest algorithm of the Subresource Integrity manifest, e.g., "SHA-384"
+	 * @return null if no integrity manifest is generated
+	 */
+	public String getIntegrityAlgorithm() {
+		return this.integrityAlgorithm;
+	}
+
+	public void setIntegrityAlgorithm(String value) {
+		if (value == null || value.isEmpty()) {
+			this.integrityAlgorithm = null;
+			return;
+		}
+
+		this.integrityAlgorithm = value.toUpperCase();
+	}
+
 	public String getCDNRoot() {
 		return this.cdnRoot;
 	}
@@ -90,6 +177,52 @@ public class Settings {
 		this.cdnRoot = value;
 	}
 
+	/**
+	 * Gets the number of directory levels, named by successive pairs of hash characters,
+	 * which CDN output is spread across, e.g., 2 gives "/cdn/ab/cd/abcd...js"
+	 * @return zero if all output shares a single directory
+	 */
+	public int getShardDepth() {
+		return this.shardDepth;
+	}
+
+	public void setShardDepth(int value) {
+		this.shardDepth = Math.max(0, Math.min(value, MAX_SHARD_DEPTH));
+	}
+
+	/**
+	 * Builds the CDN path of hashed output
+	 * @param hash the hex-encoded content hash
+	 * @param ext the target extension
+	 * @return
+	 */
+	public String getHashPath(String hash, String ext) {
+		StringBuilder buffer = new StringBuilder(this.cdnRoot.length()+hash.length()+ext.length()+this.shardDepth*3);
+		buffer.append(this.cdnRoot);
+		for (int i=0; i<this.shardDepth; i++) {
+			buffer.append(hash, i*2, i*2+2).append('/');
+		}
+		return buffer.append(hash).append(ext).toString();
+	}
+
+	/**
+	 * Gets the URL of hashed output relative to any other hashed output. As all output
+	 * sits at the same depth, this stays valid when merged into a different file.
+	 * @param hashPath
+	 * @return the relative URL, or hashPath if outside of the CDN root
+	 */
+	public String getRelativeHashPath(String hashPath) {
+		if (!hashPath.startsWith(this.cdnRoot)) {
+			return hashPath;
+		}
+
+		StringBuilder buffer = new StringBuilder();
+		for (int i=0; i<this.shardDepth; i++) {
+			buffer.append("../");
+		}
+		return buffer.append(hashPath, this.cdnRoot.length(), hashPath.length()).toString();
+	}
+
 	public String[] getExtensions() {
 		return this.extensions;
 	}
@@ -142,6 +275,496 @@ public class Settings {
 		this.targetDir = new File(value.replace('\\', '/'));
 	}
 
+	//---------------- performance
+
+	/**
+	 * Gets the maximum number of compaction map entries held in memory.
+	 * When positive, files are processed as they are discovered and the map,
+	 * along with the other per-path build state, is spilled to disk in sorted
+	 * runs which are merged when written.
+	 * @return zero if unbounded
+	 */
+	public int getManifestLimit() {
+		return this.manifestLimit;
+	}
+
+	public void setManifestLimit(int value) {
+		this.manifestLimit = (value > 0) ? value : 0;
+	}
+
+	/**
+	 * Gets the number of threads used to compact isolated resources
+	 * @return
+	 */
+	public int getThreads() {
+		return this.threads;
+	}
+
+	public void setThreads(int value) {
+		this.threads = (value > 0) ? value : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Gets the directory where compacted output is kept between builds
+	 * @return null if caching is disabled
+	 */
+	public File getCacheDir() {
+		return this.cacheDir;
+	}
+
+	public void setCacheDir(String value) {
+		if (value == null || value.isEmpty()) {
+			this.cacheDir = null;
+			return;
+		}
+
+		this.cacheDir = new File(value.replace('\\', '/'));
+	}
+
+	/**
+	 * Gets the size in megabytes past which least recently used cache entries are evicted
+	 * @return zero if unbounded
+	 */
+	public int getCacheLimit() {
+		return this.cacheLimit;
+	}
+
+	public void setCacheLimit(int value) {
+		this.cacheLimit = (value > 0) ? value : 0;
+	}
+
+	/**
+	 * Gets the names of compactors which should be bypassed.
+	 * Files normally handled by these are copied unmodified.
+	 * @return names like "js", "css", "merge"
+	 */
+	public String[] getDisabledCompactors() {
+		return this.disabledCompactors;
+	}
+
+	public void setDisabledCompactors(String... value) {
+		if (value == null) {
+			this.disabledCompactors = EMPTY;
+			return;
+		}
+
+		this.disabledCompactors = value;
+	}
+
+	public void setDisabledCompactorList(String value) {
+		if (value == null || value.isEmpty()) {
+			this.setDisabledCompactors(EMPTY);
+			return;
+		}
+
+		this.setDisabledCompactors(value.split("[|,\\s]+"));
+	}
+
+	public boolean isCompactorEnabled(String name) {
+		for (String disabled : this.disabledCompactors) {
+			if (disabled.equalsIgnoreCase(name)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	//---------------- output
+
+	/**
+	 * Gets the MessageDigest algorithm used to name CDN output
+	 * @return
+	 */
+	public String getHashAlgorithm() {
+		return this.hashAlgorithm;
+	}
+
+	public void setHashAlgorithm(String value) {
+		if (value == null || value.isEmpty()) {
+			this.hashAlgorithm = DEFAULT_HASH_ALGORITHM;
+			return;
+		}
+
+		this.hashAlgorithm = value;
+	}
+
+	/**
+	 * Gets the deflate level used to write precompressed ".gz" siblings of CDN output
+	 * @return zero if precompression is disabled
+	 */
+	public int getCompressionLevel() {
+		return this.compressionLevel;
+	}
+
+	public void setCompressionLevel(int value) {
+		this.compressionLevel = Math.max(0, Math.min(value, 9));
+	}
+
+	/**
+	 * Gets the .zip, .jar, .tar or .tar.gz archive into which CDN output is streamed as it is written
+	 * @return null if no archive is written
+	 */
+	public File getArchiveFile() {
+		return this.archiveFile;
+	}
+
+	public void setArchiveFile(String value) {
+		if (value == null || value.isEmpty()) {
+			this.archiveFile = null;
+			return;
+		}
+
+		this.archiveFile = new File(value.replace('\\', '/'));
+	}
+
+	//---------------- scripts
+
+	/**
+	 * Gets the default Closure compilation level
+	 * @return "WHITESPACE_ONLY", "SIMPLE_OPTIMIZATIONS" or "ADVANCED_OPTIMIZATIONS"
+	 */
+	public String getJSCompilation() {
+		return this.jsCompilation;
+	}
+
+	/**
+	 * @param value a Closure compilation level, or its short form, e.g. "SIMPLE"
+	 * @throws IllegalArgumentException if the level is unknown
+	 */
+	public void setJSCompilation(String value) {
+		if (value == null || value.isEmpty()) {
+			this.jsCompilation = DEFAULT_JS_COMPILATION;
+			return;
+		}
+
+		this.jsCompilation = toCompilationLevel(value, null);
+	}
+
+	/**
+	 * Gets the Closure compilation level overrides keyed by path glob
+	 * @return
+	 */
+	public Map<String, String> getJSCompilationProfiles() {
+		return this.jsProfiles;
+	}
+
+	/**
+	 * Adds a compilation level override. The first matching glob wins.
+	 * @param glob path pattern where "*" matches within a folder and "**" across folders
+	 * @param level compilation level name
+	 * @throws IllegalArgumentException if the level is unknown
+	 */
+	public void addJSCompilationProfile(String glob, String level) {
+		if (glob == null || glob.isEmpty() || level == null || level.isEmpty()) {
+			return;
+		}
+
+		glob = glob.replace('\\', '/');
+		level = toCompilationLevel(level, glob);
+		this.jsProfiles.put(glob, level);
+		this.jsProfilePatterns.put(compileGlob(glob), level);
+	}
+
+	/**
+	 * Validates a compilation level up front rather than once the first script is compiled
+	 * @param level
+	 * @param glob the profile glob, or null for the default level
+	 * @return the full level name
+	 */
+	private static String toCompilationLevel(String level, String glob) {
+		level = level.trim().toUpperCase();
+		if ("WHITESPACE".equals(level)) {
+			level = CompilationLevel.WHITESPACE_ONLY.name();
+
+		} else if ("SIMPLE".equals(level) || "ADVANCED".equals(level)) {
+			level += "_OPTIMIZATIONS";
+		}
+
+		try {
+			return CompilationLevel.valueOf(level).name();
+
+		} catch (IllegalArgumentException ex) {
+			throw new IllegalArgumentException("Unknown Closure compilation level "+level+
+				((glob != null) ? " for "+glob : ""), ex);
+		}
+	}
+
+	/**
+	 * @param value list of "glob=level" pairs, e.g. "/lib/**=WHITESPACE_ONLY,/app/**=ADVANCED_OPTIMIZATIONS"
+	 */
+	public void setJSCompilationProfileList(String value) {
+		this.jsProfiles.clear();
+		this.jsProfilePatterns.clear();
+
+		if (value == null || value.isEmpty()) {
+			return;
+		}
+
+		for (String profile : value.split("[|,\\s]+")) {
+			int eq = profile.indexOf('=');
+			if (eq > 0) {
+				this.addJSCompilationProfile(profile.substring(0, eq), profile.substring(eq+1));
+			}
+		}
+	}
+
+	/**
+	 * Gets the Closure compilation level for a path
+	 * @param path URL path of the source file
+	 * @return
+	 */
+	public String getJSCompilation(String path) {
+		for (Map.Entry<Pattern, String> profile : this.jsProfilePatterns.entrySet()) {
+			if (profile.getKey().matcher(path).matches()) {
+				return profile.getValue();
+			}
+		}
+
+		return this.jsCompilation;
+	}
+
+	private static Pattern compileGlob(String glob) {
+		StringBuilder regex = new StringBuilder(glob.length() * 2);
+		int start = 0,
+			length = glob.length();
+
+		for (int i=0; i<length; i++) {
+			char ch = glob.charAt(i);
+			if (ch != '*' && ch != '?') {
+				continue;
+			}
+
+			if (i > start) {
+				regex.append(Pattern.quote(glob.substring(start, i)));
+			}
+			start = i+1;
+
+			if (ch == '?') {
+				regex.append("[^/]");
+
+			} else if (i+1 < length && glob.charAt(i+1) == '*') {
+				regex.append(".*");
+				start = ++i + 1;
+
+			} else {
+				regex.append("[^/]*");
+			}
+		}
+
+		if (length > start) {
+			regex.append(Pattern.quote(glob.substring(start, length)));
+		}
+
+		return Pattern.compile(regex.toString());
+	}
+
+	//---------------- stylesheets
+
+	/**
+	 * Gets the size up to which assets referenced from CSS are inlined as "data:" URIs
+	 * @return zero if inlining is disabled
+	 */
+	public int getInlineLimit() {
+		return this.inlineLimit;
+	}
+
+	public void setInlineLimit(int value) {
+		this.inlineLimit = (value > 0) ? value : 0;
+	}
+
+	/**
+	 * Gets the size up to which non-repeating PNG and GIF backgrounds are packed into a sprite per stylesheet
+	 * @return zero if sprites are disabled
+	 */
+	public int getSpriteLimit() {
+		return this.spriteLimit;
+	}
+
+	public void setSpriteLimit(int value) {
+		this.spriteLimit = (value > 0) ? value : 0;
+	}
+
+	/**
+	 * Determines if local CSS @import statements are replaced by the stylesheets they import
+	 * @return
+	 */
+	public boolean isFlattenImports() {
+		return this.flattenImports;
+	}
+
+	public void setFlattenImports(boolean value) {
+		this.flattenImports = value;
+	}
+
+	/**
+	 * Determines if duplicate rules and declarations are removed from merged stylesheets
+	 * @return
+	 */
+	public boolean isDedupeCss() {
+		return this.dedupeCss;
+	}
+
+	public void setDedupeCss(boolean value) {
+		this.dedupeCss = value;
+	}
+
+	//---------------- merge files
+
+	/**
+	 * Gets the size budget past which merge files are split into chunks
+	 * @return zero if merge files are not split
+	 */
+	public int getBundleLimit() {
+		return this.bundleLimit;
+	}
+
+	public void setBundleLimit(int value) {
+		this.bundleLimit = (value > 0) ? value : 0;
+	}
+
+	/**
+	 * Gets the number of merge files which must lead with the same members
+	 * before those members are extracted into a shared common chunk
+	 * @return zero if common chunks are not extracted
+	 */
+	public int getCommonChunkThreshold() {
+		return this.commonChunkThreshold;
+	}
+
+	public void setCommonChunkThreshold(int value) {
+		// a chunk used by a single merge file is not common
+		this.commonChunkThreshold = (value > 1) ? value : 0;
+	}
+
+	/**
+	 * Gets if debug placeholders load the original files in parallel rather than
+	 * with blocking document.write or nested @import chains
+	 * @return
+	 */
+	public boolean isAsyncPlaceholders() {
+		return this.asyncPlaceholders;
+	}
+
+	public void setAsyncPlaceholders(boolean value) {
+		this.asyncPlaceholders = value;
+	}
+
+	//---------------- build diff
+
+	/**
+	 * Gets the compaction map of a previous build to compare against
+	 * @return null if no diff report is generated
+	 */
+	public File getBaselineMapFile() {
+		return this.baselineMapFile;
+	}
+
+	public void setBaselineMapFile(String value) {
+		if (value == null || value.isEmpty()) {
+			this.baselineMapFile = null;
+			return;
+		}
+
+		this.baselineMapFile = new File(value.replace('\\', '/'));
+	}
+
+	/**
+	 * Gets the output root of the previous build
+	 * @return defaults to the target directory, where hashed output of previous builds remains
+	 */
+	public File getBaselineDir() {
+		if (this.baselineDir == null) {
+			return this.getTargetDir();
+		}
+
+		return this.baselineDir;
+	}
+
+	public void setBaselineDir(String value) {
+		if (value == null || value.isEmpty()) {
+			this.baselineDir = null;
+			return;
+		}
+
+		this.baselineDir = new File(value.replace('\\', '/'));
+	}
+
+	public File getDiffReportFile() {
+		if (this.diffReportFile == null) {
+			return new File(this.getTargetDir(), DEFAULT_DIFF_FILE);
+		}
+
+		return this.diffReportFile;
+	}
+
+	public void setDiffReportFile(String value) {
+		if (value == null || value.isEmpty()) {
+			this.diffReportFile = null;
+			return;
+		}
+
+		this.diffReportFile = new File(value.replace('\\', '/'));
+	}
+
+	/**
+	 * Gets the number of gzipped bytes any one entry may grow by before failing the build
+	 * @return zero if unbounded
+	 */
+	public int getSizeBudget() {
+		return this.sizeBudget;
+	}
+
+	public void setSizeBudget(int value) {
+		this.sizeBudget = (value > 0) ? value : 0;
+	}
+
+	/**
+	 * Gets the number of gzipped bytes the whole output may grow by before failing the build
+	 * @return zero if unbounded
+	 */
+	public int getTotalSizeBudget() {
+		return this.totalSizeBudget;
+	}
+
+	public void setTotalSizeBudget(int value) {
+		this.totalSizeBudget = (value > 0) ? value : 0;
+	}
+
+	//---------------- fingerprint
+
+	/**
+	 * Gets a digest of every setting which affects what is written under the CDN root and
+	 * into the manifests. Settings which only affect how the build runs (e.g., threads, caching)
+	 * or what it reports and archives (diff baseline, size budgets, archive file) are excluded.
+	 * @return hex-encoded SHA-1
+	 */
+	public String getFingerprint() {
+		StringBuilder buffer = new StringBuilder();
+		Object[] values = {
+			getCDNRoot(), getShardDepth(), Arrays.toString(getExtensions()), getIntegrityAlgorithm(),
+			getCDNMapFile(), getCDNLinksFile(), getCDNIntegrityFile(),
+			getDisabledCompactors() != null ? Arrays.toString(getDisabledCompactors()) : null,
+			getHashAlgorithm(), getCompressionLevel(),
+			getJSCompilation(), getJSCompilationProfiles(),
+			getInlineLimit(), getSpriteLimit(), isFlattenImports(), isDedupeCss(),
+			getBundleLimit(), getCommonChunkThreshold(), isAsyncPlaceholders()
+		};
+		for (Object value : values) {
+			buffer.append(value).append('\n');
+		}
+
+		try {
+			MessageDigest hash = MessageDigest.getInstance("SHA-1");
+			return BuildManager.encodeBytes(hash.digest(buffer.toString().getBytes("UTF-8")));
+
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex.getMessage(), ex);
+
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex.getMessage(), ex);
+		}
+	}
+
 	//----------------
 
 	File getTargetFile(String targetPath) {
@@ -2,7 +2,9 @@ package org.duelengine.merge.maven;
 
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.slf4j.helpers.FormattingTuple;
 import org.slf4j.helpers.MarkerIgnoringBase;
+import org.slf4j.helpers.MessageFormatter;
 
 @SuppressWarnings("serial")
 public class MavenLoggerAdapter extends MarkerIgnoringBase {
@@ -25,12 +27,16 @@ public class MavenLoggerAdapter extends MarkerIgnoringBase {
 
 	@Override
 	public void debug(String format, Object arg1) {
-		debug(String.format(format, arg1));
+		if (isDebugEnabled()) {
+			debug(MessageFormatter.format(format, arg1));
+		}
 	}
 
 	@Override
 	public void debug(String format, Object... args) {
-		debug(String.format(format, args));
+		if (isDebugEnabled()) {
+			debug(MessageFormatter.arrayFormat(format, args));
+		}
 	}
 
 	@Override
@@ -40,7 +46,17 @@ public class MavenLoggerAdapter extends MarkerIgnoringBase {
 
 	@Override
 	public void debug(String format, Object arg1, Object arg2) {
-		debug(String.format(format, arg1, arg2));
+		if (isDebugEnabled()) {
+			debug(MessageFormatter.format(format, arg1, arg2));
+		}
+	}
+
+	private void debug(FormattingTuple tuple) {
+		if (tuple.getThrowable() != null) {
+			getLog().debug(tuple.getMessage(), tuple.getThrowable());
+		} else {
+			getLog().debug(tuple.getMessage());
+		}
 	}
 
 	@Override
@@ -50,12 +66,16 @@ public class MavenLoggerAdapter extends MarkerIgnoringBase {
 
 	@Override
 	public void error(String format, Object arg1) {
-		error(String.format(format, arg1));
+		if (isErrorEnabled()) {
+			error(MessageFormatter.format(format, arg1));
+		}
 	}
 
 	@Override
 	public void error(String format, Object... args) {
-		error(String.format(format, args));
+		if (isErrorEnabled()) {
+			error(MessageFormatter.arrayFormat(format, args));
+		}
 	}
 
 	@Override
@@ -65,7 +85,17 @@ public class MavenLoggerAdapter extends MarkerIgnoringBase {
 
 	@Override
 	public void error(String format, Object arg1, Object arg2) {
-		error(String.format(format, arg1, arg2));
+		if (isErrorEnabled()) {
+			error(MessageFormatter.format(format, arg1, arg2));
+		}
+	}
+
+	private void error(FormattingTuple tuple) {
+		if (tuple.getThrowable() != null) {
+			getLog().error(tuple.getMessage(), tuple.getThrowable());
+		} else {
+			getLog().error(tuple.getMessage());
+		}
 	}
 
 	@Override
@@ -75,12 +105,16 @@ public class MavenLoggerAdapter extends MarkerIgnoringBase {
 
 	@Override
 	public void info(String format, Object arg1) {
-		info(String.format(format, arg1));
+		if (isInfoEnabled()) {
+			info(MessageFormatter.format(format, arg1));
+		}
 	}
 
 	@Override
 	public void info(String format, Object... args) {
-		info(String.format(format, args));
+		if (isInfoEnabled()) {
+			info(MessageFormatter.arrayFormat(format, args));
+		}
 	}
 
 	@Override
@@ -90,7 +124,17 @@ public class MavenLoggerAdapter extends MarkerIgnoringBase {
 
 	@Override
 	public void info(String format, Object arg1, Object arg2) {
-		info(String.format(format, arg1, arg2));
+		if (isInfoEnabled()) {
+			info(MessageFormatter.format(format, arg1, arg2));
+		}
+	}
+
+	private void info(FormattingTuple tuple) {
+		if (tuple.getThrowable() != null) {
+			getLog().info(tuple.getMessage(), tuple.getThrowable());
+		} else {
+			getLog().info(tuple.getMessage());
+		}
 	}
 
 	@Override
@@ -150,12 +194,16 @@ public class MavenLoggerAdapter extends MarkerIgnoringBase {
 
 	@Override
 	public void warn(String format, Object arg1) {
-		warn(String.format(format, arg1));
+		if (isWarnEnabled()) {
+			warn(MessageFormatter.format(format, arg1));
+		}
 	}
 
 	@Override
 	public void warn(String format, Object... args) {
-		warn(String.format(format, args));
+		if (isWarnEnabled()) {
+			warn(MessageFormatter.arrayFormat(format, args));
+		}
 	}
 
 	@Override
@@ -165,6 +213,16 @@ public class MavenLoggerAdapter extends MarkerIgnoringBase {
 
 	@Override
 	public void warn(String format, Object arg1, Object arg2) {
-		warn(String.format(format, arg1, arg2));
+		if (isWarnEnabled()) {
+			warn(MessageFormatter.format(format, arg1, arg2));
+		}
+	}
+
+	private void warn(FormattingTuple tuple) {
+		if (tuple.getThrowable() != null) {
+			getLog().warn(tuple.getMessage(), tuple.getThrowable());
+		} else {
+			getLog().warn(tuple.getMessage());
+		}
 	}
 }
@@ -1,12 +1,22 @@
 package org.duelengine.merge.maven;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugin.logging.Log;
 import org.duelengine.merge.Settings;
 import org.duelengine.merge.BuildManager;
+import org.duelengine.merge.BudgetExceededException;
+import org.sonatype.plexus.build.incremental.BuildContext;
 
 /**
  * Generates client-side and server-side sources
@@ -52,6 +62,13 @@ public class MergeMojo extends AbstractMojo {
 	 */
 	private String cdnRoot;
 
+	/**
+	 * Directory levels, named by pairs of hash characters, which CDN output is spread across (0: flat).
+	 * 
+	 * @parameter default-value="0"
+	 */
+	private int shardDepth;
+
 	/**
 	 * File name of the generated resource map.
 	 * 
@@ -66,6 +83,20 @@ public class MergeMojo extends AbstractMojo {
 	 */
 	private String cdnLinksFile;
 
+	/**
+	 * File name of the generated Subresource Integrity manifest.
+	 * 
+	 * @parameter default-value="/cdnIntegrity.properties"
+	 */
+	private String cdnIntegrityFile;
+
+	/**
+	 * Digest algorithm of the Subresource Integrity manifest, e.g., "SHA-384" (default: none).
+	 * 
+	 * @parameter expression="${merge.integrityAlgorithm}"
+	 */
+	private String integrityAlgorithm;
+
 	/**
 	 * List of additional file extensions to hash and copy directly into CDN.
 	 * 
@@ -73,6 +104,166 @@ public class MergeMojo extends AbstractMojo {
 	 */
 	private String cdnFiles;
 
+	/**
+	 * Closure compilation level: WHITESPACE_ONLY, SIMPLE_OPTIMIZATIONS or ADVANCED_OPTIMIZATIONS.
+	 * 
+	 * @parameter expression="${merge.jsCompilation}" default-value="SIMPLE_OPTIMIZATIONS"
+	 */
+	private String jsCompilation;
+
+	/**
+	 * List of path-glob=level overrides of the Closure compilation level,
+	 * e.g., "/lib/**=WHITESPACE_ONLY /app/**=ADVANCED_OPTIMIZATIONS".
+	 * 
+	 * @parameter default-value=""
+	 */
+	private String jsCompilationProfiles;
+
+	/**
+	 * Number of threads compacting isolated resources (0: all cores).
+	 * 
+	 * @parameter expression="${merge.threads}" default-value="1"
+	 */
+	private int threads;
+
+	/**
+	 * MessageDigest algorithm used to name CDN output.
+	 * 
+	 * @parameter default-value="SHA-1"
+	 */
+	private String hashAlgorithm;
+
+	/**
+	 * Directory keeping compacted output between builds.
+	 * 
+	 * @parameter expression="${merge.cacheDir}"
+	 */
+	private String cacheDir;
+
+	/**
+	 * Size in megabytes past which least recently used cache entries are evicted (0: unbounded).
+	 * 
+	 * @parameter expression="${merge.cacheLimit}" default-value="0"
+	 */
+	private int cacheLimit;
+
+	/**
+	 * Deflate level for precompressed ".gz" siblings of CDN output (0: none).
+	 * 
+	 * @parameter default-value="0"
+	 */
+	private int compressionLevel;
+
+	/**
+	 * Archive (.zip, .jar, .tar or .tar.gz) into which CDN output is also streamed (default: none).
+	 * 
+	 * @parameter expression="${merge.archiveFile}"
+	 */
+	private String archiveFile;
+
+	/**
+	 * Size in bytes up to which assets referenced from CSS are inlined as "data:" URIs (0: none).
+	 * 
+	 * @parameter default-value="0"
+	 */
+	private int inlineLimit;
+
+	/**
+	 * Size in bytes up to which non-repeating PNG/GIF backgrounds are packed into a sprite per stylesheet (0: none).
+	 * 
+	 * @parameter default-value="0"
+	 */
+	private int spriteLimit;
+
+	/**
+	 * Inline local CSS @import statements.
+	 * 
+	 * @parameter expression="${merge.flattenImports}" default-value="false"
+	 */
+	private boolean flattenImports;
+
+	/**
+	 * Remove duplicate rules from merged stylesheets.
+	 * 
+	 * @parameter expression="${merge.dedupeCss}" default-value="false"
+	 */
+	private boolean dedupeCss;
+
+	/**
+	 * Size in bytes past which merge files are split into parallel-loaded chunks (0: none).
+	 * 
+	 * @parameter default-value="0"
+	 */
+	private int bundleLimit;
+
+	/**
+	 * Number of merge files which must lead with the same members before those are extracted into shared chunks (0: none).
+	 * 
+	 * @parameter default-value="0"
+	 */
+	private int commonChunkThreshold;
+
+	/**
+	 * Debug placeholders load the original files in parallel, preserving order.
+	 * 
+	 * @parameter expression="${merge.asyncPlaceholders}" default-value="false"
+	 */
+	private boolean asyncPlaceholders;
+
+	/**
+	 * Compaction map of a previous build to diff against (e.g., a copy of the last released cdn.properties).
+	 * 
+	 * @parameter expression="${merge.baselineMap}"
+	 */
+	private String baselineMap;
+
+	/**
+	 * Output root of the previous build (default: outputDir).
+	 * 
+	 * @parameter expression="${merge.baselineDir}"
+	 */
+	private String baselineDir;
+
+	/**
+	 * Gzipped bytes any one entry may grow by versus the baseline before failing the build (0: unbounded).
+	 * 
+	 * @parameter default-value="0"
+	 */
+	private int sizeBudget;
+
+	/**
+	 * Gzipped bytes the whole output may grow by versus the baseline before failing the build (0: unbounded).
+	 * 
+	 * @parameter default-value="0"
+	 */
+	private int totalSizeBudget;
+
+	/**
+	 * Maximum compaction map entries held in memory before spilling to disk (0: unbounded).
+	 * 
+	 * @parameter default-value="0"
+	 */
+	private int manifestLimit;
+
+	/**
+	 * List of compactors to bypass, copying their files unmodified (e.g., "js css").
+	 * 
+	 * @parameter expression="${merge.disabledCompactors}" default-value=""
+	 */
+	private String disabledCompactors;
+
+	/**
+	 * Only reprocess webapp files modified since the resource map was generated.
+	 * 
+	 * @parameter expression="${merge.incremental}" default-value="true"
+	 */
+	private boolean incremental;
+
+	/**
+	 * @component
+	 */
+	private BuildContext buildContext;
+
 	@Override
 	public void setLog(Log log) {
 		super.setLog(log);
@@ -81,7 +272,7 @@ public class MergeMojo extends AbstractMojo {
 	};
 
 	public void execute()
-		throws MojoExecutionException {
+		throws MojoExecutionException, MojoFailureException {
 
 		if (!this.cdnMapFile.startsWith("/")) {
 			this.cdnMapFile = '/'+this.cdnMapFile;
@@ -91,13 +282,46 @@ public class MergeMojo extends AbstractMojo {
 			this.cdnLinksFile = '/'+this.cdnLinksFile;
 		}
 
+		if (!this.cdnIntegrityFile.startsWith("/")) {
+			this.cdnIntegrityFile = '/'+this.cdnIntegrityFile;
+		}
+
 		Settings settings = new Settings();
 		settings.setSourceDir(this.webappDir);
 		settings.setTargetDir(this.outputDir);
 		settings.setCDNMapFile(this.resourcesDir+this.cdnMapFile);
 		settings.setCDNLinksFile(this.resourcesDir+this.cdnLinksFile);
+		settings.setCDNIntegrityFile(this.resourcesDir+this.cdnIntegrityFile);
+		settings.setIntegrityAlgorithm(this.integrityAlgorithm);
 		settings.setCDNRoot(this.cdnRoot);
+		settings.setShardDepth(this.shardDepth);
 		settings.setExtensionList(this.cdnFiles);
+		try {
+			settings.setJSCompilation(this.jsCompilation);
+			settings.setJSCompilationProfileList(this.jsCompilationProfiles);
+
+		} catch (IllegalArgumentException ex) {
+			throw new MojoExecutionException(ex.getMessage(), ex);
+		}
+		settings.setThreads(this.threads);
+		settings.setHashAlgorithm(this.hashAlgorithm);
+		settings.setCacheDir(this.cacheDir);
+		settings.setCacheLimit(this.cacheLimit);
+		settings.setCompressionLevel(this.compressionLevel);
+		settings.setArchiveFile(this.archiveFile);
+		settings.setInlineLimit(this.inlineLimit);
+		settings.setSpriteLimit(this.spriteLimit);
+		settings.setFlattenImports(this.flattenImports);
+		settings.setDedupeCss(this.dedupeCss);
+		settings.setBundleLimit(this.bundleLimit);
+		settings.setCommonChunkThreshold(this.commonChunkThreshold);
+		settings.setAsyncPlaceholders(this.asyncPlaceholders);
+		settings.setBaselineMapFile(this.baselineMap);
+		settings.setBaselineDir(this.baselineDir);
+		settings.setSizeBudget(this.sizeBudget);
+		settings.setTotalSizeBudget(this.totalSizeBudget);
+		settings.setManifestLimit(this.manifestLimit);
+		settings.setDisabledCompactorList(this.disabledCompactors);
 
 		Log log = this.getLog();
 
@@ -105,14 +329,124 @@ public class MergeMojo extends AbstractMojo {
 		log.info("\ttargetDir="+settings.getTargetDir());
 		log.info("\tcdnMapFile="+settings.getCDNMapFile());
 		log.info("\tcdnLinksFile="+settings.getCDNLinksFile());
+		log.info("\tcdnIntegrityFile="+settings.getCDNIntegrityFile());
+		log.info("\tintegrityAlgorithm="+settings.getIntegrityAlgorithm());
 		log.info("\tcdnRoot="+settings.getCDNRoot());
+		log.info("\tshardDepth="+settings.getShardDepth());
 		log.info("\tcdnFiles="+Arrays.toString(settings.getExtensions()));
+		log.info("\tjsCompilation="+settings.getJSCompilation());
+		log.info("\tjsCompilationProfiles="+settings.getJSCompilationProfiles());
+		log.info("\tthreads="+settings.getThreads());
+		log.info("\thashAlgorithm="+settings.getHashAlgorithm());
+		log.info("\tcacheDir="+settings.getCacheDir());
+		log.info("\tcacheLimit="+settings.getCacheLimit());
+		log.info("\tcompressionLevel="+settings.getCompressionLevel());
+		log.info("\tarchiveFile="+settings.getArchiveFile());
+		log.info("\tinlineLimit="+settings.getInlineLimit());
+		log.info("\tspriteLimit="+settings.getSpriteLimit());
+		log.info("\tflattenImports="+settings.isFlattenImports());
+		log.info("\tdedupeCss="+settings.isDedupeCss());
+		log.info("\tbundleLimit="+settings.getBundleLimit());
+		log.info("\tcommonChunkThreshold="+settings.getCommonChunkThreshold());
+		log.info("\tasyncPlaceholders="+settings.isAsyncPlaceholders());
+		log.info("\tbaselineMap="+settings.getBaselineMapFile());
+		log.info("\tsizeBudget="+settings.getSizeBudget());
+		log.info("\ttotalSizeBudget="+settings.getTotalSizeBudget());
+		log.info("\tmanifestLimit="+settings.getManifestLimit());
+		log.info("\tdisabledCompactors="+Arrays.toString(settings.getDisabledCompactors()));
 
 		try {
-			new BuildManager(settings).execute();
+			List<File> changes = null;
+			if (this.incremental && settings.getCDNMapFile().exists()) {
+				Map<String, String> stamps = BuildManager.readManifestStamps(settings.getCDNMapFile());
+				if (!settings.getFingerprint().equals(stamps.get(BuildManager.SETTINGS_STAMP))) {
+					log.info("Settings changed since the previous build");
+
+				} else {
+					changes = new ArrayList<File>();
+					if (!this.findChanges(settings, stamps, changes)) {
+						log.info("Merge is up to date");
+						return;
+					}
+					log.info("\tchanged="+changes.size());
+				}
+			}
+
+			new BuildManager(settings).execute(changes);
+
+			if (this.buildContext != null) {
+				this.buildContext.refresh(settings.getTargetDir());
+				this.buildContext.refresh(settings.getCDNMapFile().getParentFile());
+			}
+
+		} catch (BudgetExceededException ex) {
+			throw new MojoFailureException(ex.getMessage());
 
 		} catch (Exception ex) {
 			log.error(ex);
 		}
 	}
+
+	/**
+	 * Finds webapp files modified since the previous build started
+	 * @param settings
+	 * @param stamps header stamps of the previous resource map
+	 * @param changes receives the modified files
+	 * @return true if anything changed, including added or removed files
+	 * @throws IOException
+	 */
+	private boolean findChanges(Settings settings, Map<String, String> stamps, List<File> changes)
+			throws IOException {
+
+		if (this.buildContext != null && this.buildContext.isIncremental() &&
+			!this.buildContext.hasDelta(settings.getSourceDir())) {
+			return false;
+		}
+
+		// the build writes its outputs after it starts so folders are compared to the map itself
+		long lastWrite = settings.getCDNMapFile().lastModified();
+		long lastBuild = BuildManager.parseStamp(stamps.get(BuildManager.STARTED_STAMP));
+		if (lastBuild <= 0L) {
+			lastBuild = lastWrite;
+		}
+
+		String cdnPath = settings.getCDNDir().getCanonicalPath();
+		Set<String> outputs = new HashSet<String>();
+		for (File output : new File[] { settings.getCDNMapFile(), settings.getCDNLinksFile(),
+				settings.getCDNIntegrityFile(), settings.getDiffReportFile(), settings.getArchiveFile() }) {
+			if (output != null) {
+				outputs.add(output.getCanonicalPath());
+			}
+		}
+		boolean stale = false;
+
+		List<File> folders = new ArrayList<File>();
+		folders.add(settings.getSourceDir());
+		while (!folders.isEmpty()) {
+			File folder = folders.remove(folders.size()-1);
+			if (folder.lastModified() > lastWrite) {
+				// entries were added, removed or renamed
+				stale = true;
+			}
+
+			File[] children = folder.listFiles();
+			if (children == null) {
+				continue;
+			}
+
+			for (File file : children) {
+				if (file.isDirectory()) {
+					if (!file.getCanonicalPath().startsWith(cdnPath)) {
+						folders.add(file);
+					}
+
+				} else if (file.lastModified() >= lastBuild && !outputs.contains(file.getCanonicalPath())) {
+					// includes anything modified while the previous build was reading it
+					changes.add(file);
+				}
+			}
+		}
+
+		return stale || !changes.isEmpty();
+	}
 }